@@ -0,0 +1,271 @@
+package pl.uksw.edu.javatorrent.cli;
+
+import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.storage.FileStorage;
+import pl.uksw.edu.javatorrent.client.storage.MappedFileStorage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.PatternLayout;
+
+// Compares the file storage backends on a read-heavy seeding workload: blocks
+// read at random offsets of a file, from several threads at once.
+public class StorageBenchmark {
+
+    private static final int DEFAULT_SIZE_MB = 512;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_SECONDS = 10;
+
+    private static void usage(PrintStream s) {
+        s.println("usage: StorageBenchmark [options] [file]");
+        s.println();
+        s.println("Available options:");
+        s.println("  -h,--help             Show this help and exit.");
+        s.println("  -s,--size MB          Size of the file to create if it does not exist (default: " + DEFAULT_SIZE_MB + ").");
+        s.println("  -t,--threads N        Number of reading threads (default: " + DEFAULT_THREADS + ").");
+        s.println("  -d,--duration SECONDS Time to run each backend for (default: " + DEFAULT_SECONDS + ").");
+        s.println("  -c,--cold             Drop the page cache before each run (needs root).");
+        s.println();
+    }
+
+    public static void main(String[] args) {
+        BasicConfigurator.configure(new ConsoleAppender(
+                new PatternLayout("%d [%-25t] %-5p: %m%n")));
+
+        CmdLineParser parser = new CmdLineParser();
+        CmdLineParser.Option help = parser.addBooleanOption('h', "help");
+        CmdLineParser.Option size = parser.addIntegerOption('s', "size");
+        CmdLineParser.Option threads = parser.addIntegerOption('t', "threads");
+        CmdLineParser.Option duration = parser.addIntegerOption('d', "duration");
+        CmdLineParser.Option cold = parser.addBooleanOption('c', "cold");
+
+        try {
+            parser.parse(args);
+        } catch (CmdLineParser.OptionException oe) {
+            System.err.println(oe.getMessage());
+            usage(System.err);
+            System.exit(1);
+        }
+
+        if (Boolean.TRUE.equals((Boolean)parser.getOptionValue(help))) {
+            usage(System.out);
+            System.exit(0);
+        }
+
+        int sizeValue = (Integer)parser.getOptionValue(size, DEFAULT_SIZE_MB);
+        int threadsValue = (Integer)parser.getOptionValue(threads, DEFAULT_THREADS);
+        int durationValue = (Integer)parser.getOptionValue(duration, DEFAULT_SECONDS);
+        boolean coldValue = Boolean.TRUE.equals((Boolean)parser.getOptionValue(cold));
+
+        String[] otherArgs = parser.getRemainingArgs();
+        if (otherArgs.length > 1) {
+            usage(System.err);
+            System.exit(1);
+        }
+
+        try {
+            File file = otherArgs.length > 0
+                    ? new File(otherArgs[0])
+                    : new File(System.getProperty("java.io.tmpdir"), "ttorrent-benchmark.bin");
+            if (!file.exists()) {
+                create(file, sizeValue * 1024L * 1024L);
+            }
+
+            for (boolean mapped : new boolean[] { false, true }) {
+                for (boolean transfer : new boolean[] { false, true }) {
+                    FileStorage storage = mapped
+                            ? new MappedFileStorage(file, file.length())
+                            : new FileStorage(file, file.length());
+                    run(mapped ? "mapped" : "channel", storage, transfer,
+                            threadsValue, durationValue, coldValue);
+                    storage.close();
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static void create(File file, long size) throws IOException {
+        System.out.println("Creating " + file + " (" + size + " bytes)...");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[1024 * 1024];
+            Random random = new Random();
+            for (long written = 0; written < size; written += data.length) {
+                random.nextBytes(data);
+                raf.write(data, 0, (int)Math.min(data.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void run(String name, final FileStorage storage,
+            final boolean transfer, int threads, int seconds, final boolean cold)
+            throws IOException, InterruptedException {
+        if (cold) {
+            dropCache();
+        } else {
+            warmUp(storage);
+        }
+
+        // Blocks are read in a random order, each of them once per pass, so
+        // that a cold run never reads a block the page cache already holds.
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final int[] order = shuffle((int)(storage.size() / Piece.BLOCK_SIZE));
+        final AtomicInteger next = new AtomicInteger(0);
+        final long[] blocks = new long[threads];
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            final SocketChannel target = transfer
+                    ? SocketChannel.open(server.socket().getLocalSocketAddress())
+                    : null;
+            if (transfer) {
+                drain(server.accept());
+            }
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer block = ByteBuffer.allocate(Piece.BLOCK_SIZE);
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            int n = next.getAndIncrement();
+                            if (cold && n >= order.length) {
+                                break;
+                            }
+
+                            long offset = (long)order[n % order.length] * Piece.BLOCK_SIZE;
+                            if (transfer) {
+                                for (long sent = 0; sent < Piece.BLOCK_SIZE; ) {
+                                    sent += storage.transferTo(offset + sent,
+                                            Piece.BLOCK_SIZE - sent, target);
+                                }
+                            } else {
+                                block.clear();
+                                storage.read(block, offset);
+                            }
+
+                            blocks[index]++;
+                        }
+
+                        if (target != null) {
+                            target.close();
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println(ioe.getMessage());
+                    }
+                }
+            });
+            readers.add(reader);
+        }
+
+        long start = System.nanoTime();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            readers.get(i).join();
+            total += blocks[i];
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        server.close();
+
+        System.out.println(String.format("%-8s %-8s %-4s %10d blocks %10.1f MB/s",
+                name, transfer ? "transfer" : "read", cold ? "cold" : "warm",
+                total, total * Piece.BLOCK_SIZE / 1024.0 / 1024.0 / elapsed));
+    }
+
+    // Reads and discards everything sent to the given socket, as a peer
+    // downloading from us would.
+    private static void drain(final SocketChannel socket) {
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (socket.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+
+                    socket.close();
+                } catch (IOException ioe) {
+                    System.err.println(ioe.getMessage());
+                }
+            }
+        });
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private static int[] shuffle(int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        Random random = new Random();
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        return order;
+    }
+
+    // Drops the page cache of the whole system, so that the file is read from
+    // the disk. Only works on Linux, as root.
+    private static void dropCache() throws IOException, InterruptedException {
+        // Pages still mapped by the windows of a previous run can't be
+        // dropped, and windows are only unmapped once collected.
+        System.gc();
+        Thread.sleep(1000);
+
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        FileOutputStream drop = new FileOutputStream("/proc/sys/vm/drop_caches");
+        try {
+            drop.write("1\n".getBytes());
+        } finally {
+            drop.close();
+        }
+    }
+
+    private static void warmUp(FileStorage storage) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        try {
+            for (long offset = 0; offset < storage.size(); offset += buffer.capacity()) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), storage.size() - offset));
+                storage.read(buffer, offset);
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
@@ -4,8 +4,11 @@ package pl.uksw.edu.javatorrent.client;
 import pl.uksw.edu.javatorrent.client.announce.Announce;
 import pl.uksw.edu.javatorrent.client.announce.AnnounceException;
 import pl.uksw.edu.javatorrent.client.announce.AnnounceResponseListener;
+import pl.uksw.edu.javatorrent.client.peer.NetworkBufferPool;
 import pl.uksw.edu.javatorrent.client.peer.PeerActivityListener;
 import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
+import pl.uksw.edu.javatorrent.client.peer.WriteStatistics;
+import pl.uksw.edu.javatorrent.client.storage.FileHandlePool;
 import pl.uksw.edu.javatorrent.common.Peer;
 import pl.uksw.edu.javatorrent.common.Torrent;
 import pl.uksw.edu.javatorrent.common.protocol.PeerMessage;
@@ -30,7 +33,9 @@ public class Client extends Observable implements Runnable,
 	private static final int UNCHOKING_FREQUENCY = 3;
 	private static final int OPTIMISTIC_UNCHOKE_ITERATIONS = 3;
 
-	private static final int RATE_COMPUTATION_ITERATIONS = 2;
+	// Co ile iteracji glownej petli zapisywane sa dane wznowienia (~5 min).
+	private static final int RESUME_SAVE_ITERATIONS = 100;
+
 	private static final int MAX_DOWNLOADERS_UNCHOKE = 4;
 
 	public enum ClientState {
@@ -95,6 +100,17 @@ public class Client extends Observable implements Runnable,
 	public void setMaxUploadRate(double rate) {
 		this.torrent.setMaxUploadRate(rate);
 	}
+
+	public void setFilePriority(int file, FilePriority priority) {
+		this.torrent.setFilePriority(file, priority);
+
+		// Zainteresowanie peerami zalezy od wybranych plikow, a nowo
+		// wybrane czesci sa pobierane od razu.
+		for (SharingPeer peer : this.connected.values()) {
+			this.torrent.updateInterest(peer);
+			peer.resumeDownload();
+		}
+	}
 	public Peer getPeerSpec() {
 		return this.self;
 	}
@@ -206,7 +222,7 @@ public class Client extends Observable implements Runnable,
 		this.service.start();
 
 		int optimisticIterations = 0;
-		int rateComputationIterations = 0;
+		int resumeIterations = Client.RESUME_SAVE_ITERATIONS;
 
 		while (!this.stop) {
 			optimisticIterations =
@@ -214,17 +230,14 @@ public class Client extends Observable implements Runnable,
 							Client.OPTIMISTIC_UNCHOKE_ITERATIONS :
 							optimisticIterations - 1);
 
-			rateComputationIterations =
-					(rateComputationIterations == 0 ?
-							Client.RATE_COMPUTATION_ITERATIONS :
-							rateComputationIterations - 1);
+			if (--resumeIterations == 0) {
+				this.torrent.saveResumeData();
+				resumeIterations = Client.RESUME_SAVE_ITERATIONS;
+			}
 
 			try {
 				this.unchokePeers(optimisticIterations == 0);
 				this.info();
-				if (rateComputationIterations == 0) {
-					this.resetPeerRates();
-				}
 			} catch (Exception e) {
 				logger.error("Wystapil wyjatek " +
 						"Klient sie zapetlil", e);
@@ -271,12 +284,8 @@ public class Client extends Observable implements Runnable,
 	}
 
 	public synchronized void info() {
-		float dl = 0;
-		float ul = 0;
-		for (SharingPeer peer : this.connected.values()) {
-			dl += peer.getDLRate().get();
-			ul += peer.getULRate().get();
-		}
+		float dl = this.torrent.getDownloadRate().get();
+		float ul = this.torrent.getUploadRate().get();
 
 		logger.info("{} {}/{} czesci ({}%) [{}/{}] z {}/{} peerow, predkosc: {}/{} kB/s.",
 				new Object[] {
@@ -292,22 +301,21 @@ public class Client extends Observable implements Runnable,
 						String.format("%.2f", ul/1024.0),
 				});
 		for (SharingPeer peer : this.connected.values()) {
-			Piece piece = peer.getRequestedPiece();
+			Set<Piece> pieces = peer.getRequestedPieces();
 			logger.debug("  | {} {}",
 					peer,
-					piece != null
-							? "(pobieranie " + piece + ")"
+					!pieces.isEmpty()
+							? "(pobieranie " + pieces + ")"
 							: ""
 			);
 		}
+		logger.debug("  Bufory sieciowe: {}", NetworkBufferPool.getDefault());
+		logger.debug("  Zapis sieciowy: {}", WriteStatistics.getGlobal());
+		logger.debug("  Pamiec podreczna odczytu: {}", PieceCache.getGlobal());
+		logger.debug("  Operacje dyskowe: {}", DiskIOExecutor.getGlobal());
+		logger.debug("  Otwarte pliki: {}", FileHandlePool.getGlobal());
 	}
 
-	private synchronized void resetPeerRates() {
-		for (SharingPeer peer : this.connected.values()) {
-			peer.getDLRate().reset();
-			peer.getULRate().reset();
-		}
-	}
 	private SharingPeer getOrCreatePeer(Peer search) {
 		SharingPeer peer;
 
@@ -379,7 +387,9 @@ public class Client extends Observable implements Runnable,
 
 
 		for (SharingPeer peer : bound.descendingSet()) {
-			if (downloaders < Client.MAX_DOWNLOADERS_UNCHOKE) {
+			// Peery ktore nas ignoruja dostaja tylko optymistyczny unchoke.
+			if (downloaders < Client.MAX_DOWNLOADERS_UNCHOKE &&
+					!peer.isSnubbed()) {
 				if (peer.isChoking()) {
 					if (peer.isInterested()) {
 						downloaders++;
@@ -465,11 +475,11 @@ public class Client extends Observable implements Runnable,
 				}
 
 				peer.register(this);
+				peer.register(this.torrent);
 				peer.bind(channel);
 			}
 
 			this.connected.put(peer.getHexPeerId(), peer);
-			peer.register(this.torrent);
 			logger.debug("Nowe polaczenie peera z {} [{}/{}].",
 					new Object[] {
 							peer,
@@ -513,6 +523,7 @@ public class Client extends Observable implements Runnable,
 	@Override
 	public void handlePieceCompleted(SharingPeer peer, Piece piece)
 			throws IOException {
+		boolean finished = false;
 		synchronized (this.torrent) {
 			if (piece.isValid()) {
 				this.torrent.markCompleted(piece);
@@ -550,6 +561,7 @@ public class Client extends Observable implements Runnable,
 				}
 
 				this.torrent.finish();
+				finished = true;
 
 				try {
 					this.announce.getCurrentTrackerClient()
@@ -565,6 +577,24 @@ public class Client extends Observable implements Runnable,
 				this.seed();
 			}
 		}
+
+		// Zapis danych wznowienia czeka na dysk, wiec odbywa sie poza
+		// blokada torrenta.
+		if (finished) {
+			this.torrent.saveResumeData();
+		}
+	}
+
+	@Override
+	public void handleRequestTimeout(SharingPeer peer) {
+		logger.debug("Przekroczono czas oczekiwania na bloki od {}, " +
+				"przekazywanie ich innym peerom.", peer);
+
+		for (SharingPeer remote : this.connected.values()) {
+			if (remote != peer) {
+				remote.resumeDownload();
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,290 @@
+package pl.uksw.edu.javatorrent.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs the storage operations of the torrents off the peers' network threads,
+// TTORRENT_DISK_THREADS of them (0 runs jobs right away on the submitting
+// thread), taking jobs from each torrent in turn.
+public class DiskIOExecutor {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(DiskIOExecutor.class);
+
+	private static final int DEFAULT_THREADS = 2;
+
+	// Number of jobs queued from which submitters are held back.
+	private static final int MAX_QUEUED_JOBS = 1024;
+
+	// Number of jobs queued under which held back submitters resume.
+	private static final int RESUME_QUEUED_JOBS = MAX_QUEUED_JOBS / 2;
+
+	private static final DiskIOExecutor global =
+		new DiskIOExecutor(getThreadsCount());
+
+	public interface Callback<T> {
+
+		public void onCompletion(T result);
+
+		public void onFailure(IOException ioe);
+	}
+
+	private final int threads;
+	private final Map<Object, Deque<Job<?>>> queues;
+	private final Deque<Object> ready;
+	private final Map<Object, Integer> outstanding;
+	private final Set<Thread> workers;
+	private List<Runnable> drainListeners;
+
+	private int queued;
+	private int maxQueued;
+	private final LongAdder completed;
+	private final LongAdder waited;
+
+	public DiskIOExecutor(int threads) {
+		this.threads = threads;
+		this.queues = new HashMap<Object, Deque<Job<?>>>();
+		this.ready = new ArrayDeque<Object>();
+		this.outstanding = new HashMap<Object, Integer>();
+		this.workers = Collections.synchronizedSet(new HashSet<Thread>());
+		this.drainListeners = new ArrayList<Runnable>();
+
+		this.queued = 0;
+		this.maxQueued = 0;
+		this.completed = new LongAdder();
+		this.waited = new LongAdder();
+	}
+
+	public static DiskIOExecutor getGlobal() {
+		return global;
+	}
+
+	public boolean isAsynchronous() {
+		return this.threads > 0;
+	}
+
+	public <T> void submit(Object owner, Callable<T> job, Callback<T> callback) {
+		Job<T> task = new Job<T>(owner, job, callback);
+		if (!this.isAsynchronous()) {
+			task.run();
+			return;
+		}
+
+		synchronized (this) {
+			if (this.workers.isEmpty()) {
+				this.start();
+			}
+
+			Deque<Job<?>> queue = this.queues.get(owner);
+			if (queue == null) {
+				queue = new ArrayDeque<Job<?>>();
+				this.queues.put(owner, queue);
+				this.ready.add(owner);
+			}
+
+			queue.add(task);
+			Integer count = this.outstanding.get(owner);
+			this.outstanding.put(owner, count != null ? count + 1 : 1);
+			this.queued++;
+			this.maxQueued = Math.max(this.maxQueued, this.queued);
+			this.notifyAll();
+		}
+	}
+
+	// Arranges for the given listener to be called once the disk threads
+	// caught up with the queued jobs, if too many of them are queued.
+	public synchronized boolean whenDrained(Runnable listener) {
+		if (this.queued < MAX_QUEUED_JOBS) {
+			return false;
+		}
+
+		this.drainListeners.add(listener);
+		return true;
+	}
+
+	// Waits for the jobs of the given torrent queued so far to complete.
+	public synchronized void await(Object owner) throws InterruptedException {
+		if (this.workers.contains(Thread.currentThread())) {
+			return;
+		}
+
+		while (this.outstanding.containsKey(owner)) {
+			this.wait();
+		}
+	}
+
+	public synchronized int getQueueDepth() {
+		return this.queued;
+	}
+
+	// Returns the number of jobs of the given torrent waiting for a disk
+	// thread.
+	public synchronized int getQueueDepth(Object owner) {
+		Deque<Job<?>> queue = this.queues.get(owner);
+		return queue != null ? queue.size() : 0;
+	}
+
+	public synchronized int getMaxQueueDepth() {
+		return this.maxQueued;
+	}
+
+	public long getCompletedJobs() {
+		return this.completed.sum();
+	}
+
+	// Returns the average time, in milliseconds, jobs waited for a disk
+	// thread.
+	public double getAverageWaitMillis() {
+		long jobs = this.getCompletedJobs();
+		if (jobs == 0) {
+			return 0;
+		}
+
+		return this.waited.sum() / (double)jobs /
+			TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public String toString() {
+		return String.format("%d job(s) queued (max %d), %d completed, " +
+				"waited %.2f ms avg",
+			this.getQueueDepth(),
+			this.getMaxQueueDepth(),
+			this.getCompletedJobs(),
+			this.getAverageWaitMillis());
+	}
+
+	private void start() {
+		logger.debug("Starting {} disk thread(s).", this.threads);
+		for (int i = 0; i < this.threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "bt-disk-" + i);
+			thread.setDaemon(true);
+			this.workers.add(thread);
+			thread.start();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Job<?> job;
+			List<Runnable> listeners = null;
+			synchronized (this) {
+				try {
+					while (this.ready.isEmpty()) {
+						this.wait();
+					}
+				} catch (InterruptedException ie) {
+					logger.debug("Disk thread interrupted.");
+					this.workers.remove(Thread.currentThread());
+					return;
+				}
+
+				Object owner = this.ready.poll();
+				Deque<Job<?>> queue = this.queues.get(owner);
+				job = queue.poll();
+				if (queue.isEmpty()) {
+					this.queues.remove(owner);
+				} else {
+					this.ready.add(owner);
+				}
+
+				this.queued--;
+				if (this.queued <= RESUME_QUEUED_JOBS &&
+						!this.drainListeners.isEmpty()) {
+					listeners = this.drainListeners;
+					this.drainListeners = new ArrayList<Runnable>();
+				}
+			}
+
+			if (listeners != null) {
+				for (Runnable listener : listeners) {
+					listener.run();
+				}
+			}
+
+			this.waited.add(System.nanoTime() - job.queuedAt);
+			try {
+				job.run();
+			} catch (RuntimeException re) {
+				logger.error("Disk job failed!", re);
+			} finally {
+				this.completed.increment();
+				synchronized (this) {
+					int count = this.outstanding.get(job.owner) - 1;
+					if (count > 0) {
+						this.outstanding.put(job.owner, count);
+					} else {
+						this.outstanding.remove(job.owner);
+					}
+
+					this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private static int getThreadsCount() {
+		String threads = System.getenv("TTORRENT_DISK_THREADS");
+
+		if (threads != null) {
+			try {
+				int count = Integer.parseInt(threads);
+				if (count >= 0) {
+					return count;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return DEFAULT_THREADS;
+	}
+
+	private static class Job<T> {
+
+		private final Object owner;
+		private final Callable<T> job;
+		private final Callback<T> callback;
+		private final long queuedAt;
+
+		private Job(Object owner, Callable<T> job, Callback<T> callback) {
+			this.owner = owner;
+			this.job = job;
+			this.callback = callback;
+			this.queuedAt = System.nanoTime();
+		}
+
+		private void run() {
+			T result;
+			try {
+				result = this.job.call();
+			} catch (IOException ioe) {
+				this.callback.onFailure(ioe);
+				return;
+			} catch (Exception e) {
+				this.callback.onFailure(new IOException(e));
+				return;
+			}
+
+			this.callback.onCompletion(result);
+		}
+	}
+}
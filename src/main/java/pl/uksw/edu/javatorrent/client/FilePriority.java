@@ -0,0 +1,9 @@
+package pl.uksw.edu.javatorrent.client;
+
+// Download priority of a file of a torrent.
+public enum FilePriority {
+	SKIP,
+	LOW,
+	NORMAL,
+	HIGH;
+}
@@ -4,20 +4,46 @@ package pl.uksw.edu.javatorrent.client;
 import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
 import pl.uksw.edu.javatorrent.client.storage.TorrentByteStorage;
 import pl.uksw.edu.javatorrent.common.Torrent;
+import pl.uksw.edu.javatorrent.common.protocol.PeerMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 public class Piece implements Comparable<Piece> {
 
+	// Size of the blocks a piece is downloaded in.
+	public static final int BLOCK_SIZE =
+		PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE;
+
 	private static final Logger logger =
 		LoggerFactory.getLogger(Piece.class);
 
+	// Whether received blocks are written to the storage as they arrive,
+	// instead of being gathered in memory until the piece is complete, as
+	// set by TTORRENT_WRITE_THROUGH.
+	static final boolean WRITE_THROUGH = isWriteThrough();
+
+	// Buffers of the disk threads to read the blocks they warm up into.
+	private static final ThreadLocal<ByteBuffer> warmBuffers =
+		new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(
+					PeerMessage.RequestMessage.MAX_REQUEST_SIZE);
+			}
+		};
+
 	private final TorrentByteStorage bucket;
 	private final int index;
 	private final long offset;
@@ -26,8 +52,13 @@ public class Piece implements Comparable<Piece> {
 	private final boolean seeder;
 
 	private volatile boolean valid;
+	private volatile boolean late;
 	private int seen;
 	private ByteBuffer data;
+	private BitSet received;
+	private MessageDigest digest;
+	private long hashed;
+	private ArrayList<SharingPeer>[] requesters;
 	public Piece(TorrentByteStorage bucket, int index, long offset,
 		long length, byte[] hash, boolean seeder) {
 		this.bucket = bucket;
@@ -51,6 +82,19 @@ public class Piece implements Comparable<Piece> {
 	public long size() {
 		return this.length;
 	}
+
+	public long getOffset() {
+		return this.offset;
+	}
+
+	// Blocks of late pieces may be requested from several peers at once.
+	public boolean isLate() {
+		return this.late;
+	}
+
+	public void setLate(boolean late) {
+		this.late = late;
+	}
 	public boolean available() {
 		return this.seen > 0;
 	}
@@ -70,17 +114,79 @@ public class Piece implements Comparable<Piece> {
 		logger.trace("Validating {}...", this);
 		this.valid = false;
 
-		ByteBuffer buffer = this._read(0, this.length);
-		byte[] data = new byte[(int)this.length];
-		buffer.get(data);
 		try {
-			this.valid = Arrays.equals(Torrent.hash(data), this.hash);
-		} catch (NoSuchAlgorithmException e) {
-			this.valid = false;
+			if (this.digest != null && this.received != null &&
+					this.received.cardinality() == this.getBlockCount()) {
+				// Only read back what could not be hashed as the blocks
+				// arrived, if anything.
+				if (this.hashed < this.length) {
+					logger.trace("Reading back {} byte(s) of {} to validate it.",
+						this.length - this.hashed, this);
+					this.digest.update(
+						this._read(this.hashed, this.length - this.hashed));
+				}
+
+				this.valid = Arrays.equals(this.digest.digest(), this.hash);
+			} else {
+				ByteBuffer buffer = this._read(0, this.length);
+				byte[] data = new byte[(int)this.length];
+				buffer.get(data);
+				try {
+					this.valid = Arrays.equals(Torrent.hash(data), this.hash);
+				} catch (NoSuchAlgorithmException e) {
+					this.valid = false;
+				}
+			}
+		} finally {
+			// Once validated, the piece is either complete or has to be
+			// downloaded again from scratch.
+			this.received = null;
+			this.digest = null;
+			this.hashed = 0;
+			this.late = false;
 		}
 
 		return this.isValid();
 	}
+	// Validates this piece against its data, read from the storage by the
+	// caller.
+	synchronized boolean validate(ByteBuffer data, MessageDigest digest) {
+		if (this.seeder) {
+			this.valid = true;
+			return true;
+		}
+
+		digest.reset();
+		digest.update(data);
+		this.valid = data.position() == this.length &&
+			Arrays.equals(digest.digest(), this.hash);
+
+		this.received = null;
+		this.digest = null;
+		this.hashed = 0;
+		this.late = false;
+		return this.isValid();
+	}
+
+	synchronized BitSet getReceivedBlocks() {
+		return this.received != null ? (BitSet)this.received.clone() : null;
+	}
+
+	// Restores the state of this piece from a resume record, instead of
+	// validating it against the storage.
+	synchronized void restore(boolean valid, BitSet received) {
+		this.valid = valid || this.seeder;
+		this.received = null;
+		this.digest = null;
+		this.hashed = 0;
+		this.late = false;
+
+		if (!this.valid && received != null && !received.isEmpty()) {
+			this.received = received.get(0, this.getBlockCount());
+			this.digest = newDigest();
+		}
+	}
+
 	private ByteBuffer _read(long offset, long length) throws IOException {
 		if (offset + length > this.length) {
 			throw new IllegalArgumentException("Piece#" + this.index +
@@ -97,6 +203,8 @@ public class Piece implements Comparable<Piece> {
 		return buffer;
 	}
 
+	// Reads a block of this piece, from the PieceCache when the piece is
+	// cached.
 	public ByteBuffer read(long offset, int length)
 		throws IllegalArgumentException, IllegalStateException, IOException {
 		if (!this.valid) {
@@ -104,27 +212,247 @@ public class Piece implements Comparable<Piece> {
 					"known-to-be invalid piece!");
 		}
 
+		PieceCache cache = PieceCache.getGlobal();
+		ByteBuffer data = cache.accepts(this) && offset + length <= this.length
+			? cache.get(this)
+			: null;
+		if (data != null) {
+			data.limit((int)(offset + length));
+			data.position((int)offset);
+			return data.slice();
+		}
+
 		return this._read(offset, length);
 	}
-	public synchronized void record(ByteBuffer block, int offset)
+
+	// Brings a block of this piece into memory, so that it can then be
+	// transferred with transferTo without waiting for the disk.
+	public void warm(long offset, int length)
+		throws IllegalArgumentException, IllegalStateException, IOException {
+		if (!this.valid) {
+			throw new IllegalStateException("Attempting to read an " +
+					"known-to-be invalid piece!");
+		}
+
+		if (offset + length > this.length) {
+			throw new IllegalArgumentException("Piece#" + this.index +
+				" overrun (" + offset + " + " + length + " > " +
+				this.length + ") !");
+		}
+
+		if (PieceCache.getGlobal().contains(this)) {
+			return;
+		}
+
+		ByteBuffer buffer = warmBuffers.get();
+		if (length > buffer.capacity()) {
+			buffer = ByteBuffer.allocateDirect(length);
+		}
+
+		buffer.clear();
+		buffer.limit(length);
+		this.bucket.read(buffer, this.offset + offset);
+	}
+
+	ByteBuffer load() throws IOException {
+		return this._read(0, this.length);
+	}
+	// Transfers a block of this piece straight from the underlying storage to
+	// the given channel, or from the PieceCache when the piece is cached. Less
+	// than requested may be transferred if the channel is full.
+	public long transferTo(long offset, long length, WritableByteChannel target)
+		throws IllegalArgumentException, IllegalStateException, IOException {
+		if (!this.valid) {
+			throw new IllegalStateException("Attempting to read an " +
+					"known-to-be invalid piece!");
+		}
+
+		if (offset + length > this.length) {
+			throw new IllegalArgumentException("Piece#" + this.index +
+				" overrun (" + offset + " + " + length + " > " +
+				this.length + ") !");
+		}
+
+		PieceCache cache = PieceCache.getGlobal();
+		ByteBuffer data = cache.accepts(this) ? cache.get(this) : null;
+		if (data != null) {
+			data.limit((int)(offset + length));
+			data.position((int)offset);
+			return target.write(data);
+		}
+
+		return this.bucket.transferTo(this.offset + offset, length, target);
+	}
+
+	// Returns true if the block completed the piece, which was then written
+	// to the storage and must now be validated. Blocks are hashed as they
+	// arrive, as long as they are contiguous with the ones already hashed.
+	public synchronized boolean record(ByteBuffer block, int offset)
 		throws IOException {
-		if (this.data == null || offset == 0) {
+		int index = offset / BLOCK_SIZE;
+		if (offset % BLOCK_SIZE != 0 || block.remaining() !=
+				Math.min(BLOCK_SIZE, this.length - offset)) {
+			logger.warn("Ignoring misaligned block ({}@{}) for {}.",
+				new Object[] { block.remaining(), offset, this });
+			return false;
+		}
+
+		if (this.isReceived(index)) {
+			return false;
+		}
+
+		if (this.received == null) {
+			this.received = new BitSet(this.getBlockCount());
+			this.digest = newDigest();
+			this.hashed = 0;
+		}
+
+		if (WRITE_THROUGH) {
+			logger.trace("Recording block {}@{} of {}...",
+				new Object[] { block.remaining(), offset, this });
+			this.bucket.write(block.slice(), this.offset + offset);
+			this.received.set(index);
+
+			// Blocks received past a gap are not in memory anymore by the
+			// time the gap is filled: they are read back for validation.
+			if (offset == this.hashed) {
+				this.updateDigest(block.duplicate());
+			}
+
+			return this.received.cardinality() == this.getBlockCount();
+		}
+
+		if (this.data == null) {
 			// TODO: remove cast to int when large ByteBuffer support is
 			// implemented in Java.
 			this.data = ByteBuffer.allocate((int)this.length);
 		}
 
-		int pos = block.position();
 		this.data.position(offset);
-		this.data.put(block);
-		block.position(pos);
+		this.data.put(block.duplicate());
+		this.received.set(index);
+
+		// Hash the blocks now contiguous with the ones already hashed.
+		while (this.digest != null && this.hashed < this.length &&
+				this.received.get((int)(this.hashed / BLOCK_SIZE))) {
+			ByteBuffer contiguous = this.data.duplicate();
+			contiguous.limit((int)Math.min(this.length,
+				this.hashed + BLOCK_SIZE));
+			contiguous.position((int)this.hashed);
+			this.updateDigest(contiguous);
+		}
+
+		if (this.received.cardinality() < this.getBlockCount()) {
+			return false;
+		}
+
+		this.data.rewind();
+		logger.trace("Recording {}...", this);
+		this.bucket.write(this.data, this.offset);
+		this.data = null;
+		return true;
+	}
+
+	public int claimBlock(SharingPeer peer) {
+		return this.claimBlock(peer, 1);
+	}
+
+	// Claims the least requested block that was neither received nor already
+	// requested from this peer, and is requested from fewer than maxRequests
+	// peers. It stays claimed until given back with releaseBlock().
+	public synchronized int claimBlock(SharingPeer peer, int maxRequests) {
+		int index = this.findClaimableBlock(peer, maxRequests);
+		if (index < 0) {
+			return -1;
+		}
+
+		if (this.requesters == null) {
+			this.requesters = newRequesters(this.getBlockCount());
+		}
+
+		if (this.requesters[index] == null) {
+			this.requesters[index] = new ArrayList<SharingPeer>(1);
+		}
+
+		this.requesters[index].add(peer);
+		return index * BLOCK_SIZE;
+	}
+
+	public synchronized void releaseBlock(SharingPeer peer, int offset) {
+		int index = offset / BLOCK_SIZE;
+		if (this.requesters != null && index < this.requesters.length &&
+				this.requesters[index] != null) {
+			this.requesters[index].remove(peer);
+		}
+	}
 
-		if (block.remaining() + offset == this.length) {
-			this.data.rewind();
-			logger.trace("Recording {}...", this);
-			this.bucket.write(this.data, this.offset);
-			this.data = null;
+	public synchronized List<SharingPeer> getRequesters(int offset) {
+		int index = offset / BLOCK_SIZE;
+		if (this.requesters == null || index >= this.requesters.length ||
+				this.requesters[index] == null) {
+			return Collections.emptyList();
 		}
+
+		return new ArrayList<SharingPeer>(this.requesters[index]);
+	}
+
+	public boolean hasUnclaimedBlocks() {
+		return this.hasClaimableBlocks(null, 1);
+	}
+
+	public synchronized boolean hasClaimableBlocks(SharingPeer peer,
+			int maxRequests) {
+		return this.findClaimableBlock(peer, maxRequests) >= 0;
+	}
+
+	private int findClaimableBlock(SharingPeer peer, int maxRequests) {
+		if (this.valid) {
+			return -1;
+		}
+
+		int found = -1;
+		int fewest = maxRequests;
+		for (int i = 0; i < this.getBlockCount(); i++) {
+			if (this.isReceived(i)) {
+				continue;
+			}
+
+			List<SharingPeer> requesters = this.requesters != null
+				? this.requesters[i]
+				: null;
+			int requests = requesters != null ? requesters.size() : 0;
+			if (peer != null && peer.hasTimedOut(this.index, i * BLOCK_SIZE)) {
+				continue;
+			}
+
+			if (requests == 0) {
+				return i;
+			}
+
+			if (requests < fewest && !requesters.contains(peer)) {
+				found = i;
+				fewest = requests;
+			}
+		}
+
+		return found;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayList<SharingPeer>[] newRequesters(int blocks) {
+		return new ArrayList[blocks];
+	}
+
+	private boolean isReceived(int index) {
+		return this.received != null && this.received.get(index);
+	}
+
+	public int getBlockLength(int offset) {
+		return (int)Math.min(BLOCK_SIZE, this.length - offset);
+	}
+
+	public int getBlockCount() {
+		return (int)((this.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
 	}
 
 	public String toString() {
@@ -140,6 +468,26 @@ public class Piece implements Comparable<Piece> {
 			(this.index < other.index ? -1 : 1);
 	}
 
+	private void updateDigest(ByteBuffer block) {
+		if (this.digest != null) {
+			this.hashed += block.remaining();
+			this.digest.update(block);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			// Pieces will be hashed from storage when validated.
+			return null;
+		}
+	}
+
+	private static boolean isWriteThrough() {
+		return Boolean.parseBoolean(System.getenv("TTORRENT_WRITE_THROUGH"));
+	}
+
 	public static class CallableHasher implements Callable<Piece> {
 
 		private final Piece piece;
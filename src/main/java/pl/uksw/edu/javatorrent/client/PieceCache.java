@@ -0,0 +1,210 @@
+package pl.uksw.edu.javatorrent.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+// A cache of the data of recently uploaded pieces, read ahead whole as disk
+// jobs when one of their blocks is requested. Its capacity, shared by all the
+// torrents, is set in MB by TTORRENT_READ_CACHE (0, the default, disables it).
+public class PieceCache {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(PieceCache.class);
+
+	private static final PieceCache global = new PieceCache(getGlobalCapacity());
+
+	private final long capacity;
+	private final LinkedHashMap<Piece, ByteBuffer> pieces;
+	private final Set<Piece> loading;
+	private long size;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	public PieceCache(long capacity) {
+		this.capacity = capacity;
+		this.pieces = new LinkedHashMap<Piece, ByteBuffer>(16, 0.75f, true);
+		this.loading = new HashSet<Piece>();
+		this.size = 0;
+
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+
+	public static PieceCache getGlobal() {
+		return global;
+	}
+
+	public boolean accepts(Piece piece) {
+		return piece.size() <= this.capacity;
+	}
+
+	synchronized ByteBuffer get(Piece piece) {
+		ByteBuffer data = this.pieces.get(piece);
+		return data != null ? data.duplicate() : null;
+	}
+
+	// Counts a requested block as a hit if its piece is cached, a miss
+	// otherwise.
+	public void countRequest(Piece piece) {
+		if (!this.accepts(piece)) {
+			return;
+		}
+
+		if (this.contains(piece)) {
+			this.hits.increment();
+		} else {
+			this.misses.increment();
+		}
+	}
+
+	synchronized boolean contains(Piece piece) {
+		return this.pieces.containsKey(piece);
+	}
+
+	// Reads the given piece as a disk job of its torrent, and caches it,
+	// unless it is already cached or being read.
+	public void readAhead(Object owner, final Piece piece) {
+		if (!this.accepts(piece)) {
+			return;
+		}
+
+		synchronized (this) {
+			if (this.pieces.containsKey(piece) || !this.loading.add(piece)) {
+				return;
+			}
+		}
+
+		DiskIOExecutor.getGlobal().submit(owner,
+			new Callable<ByteBuffer>() {
+				@Override
+				public ByteBuffer call() throws IOException {
+					return piece.load();
+				}
+			},
+			new DiskIOExecutor.Callback<ByteBuffer>() {
+				@Override
+				public void onCompletion(ByteBuffer data) {
+					loaded(piece, data);
+				}
+
+				@Override
+				public void onFailure(IOException ioe) {
+					logger.warn("Error reading {} ahead: {}", piece,
+						ioe.getMessage());
+					loaded(piece, null);
+				}
+			});
+	}
+
+	private synchronized void loaded(Piece piece, ByteBuffer data) {
+		this.loading.remove(piece);
+
+		// Blocks are sliced out of the cached data by offset: a piece that
+		// couldn't be read whole isn't cached, and its blocks are read from
+		// the storage.
+		if (data == null || data.remaining() != piece.size()) {
+			if (data != null) {
+				logger.debug("Short read of {} ({} byte(s)), not caching it.",
+					piece, data.remaining());
+			}
+
+			return;
+		}
+
+		this.put(piece, data.asReadOnlyBuffer());
+	}
+
+	public synchronized void invalidate(Piece[] pieces) {
+		for (Piece piece : pieces) {
+			ByteBuffer data = this.pieces.remove(piece);
+			if (data != null) {
+				this.size -= data.capacity();
+			}
+		}
+	}
+
+	private synchronized void put(Piece piece, ByteBuffer data) {
+		ByteBuffer previous = this.pieces.put(piece, data);
+		this.size += data.capacity() -
+			(previous != null ? previous.capacity() : 0);
+
+		Iterator<Map.Entry<Piece, ByteBuffer>> it =
+			this.pieces.entrySet().iterator();
+		while (this.size > this.capacity && it.hasNext()) {
+			Map.Entry<Piece, ByteBuffer> eldest = it.next();
+			if (eldest.getKey() == piece) {
+				continue;
+			}
+
+			logger.trace("Evicting {} from the piece cache.", eldest.getKey());
+			this.size -= eldest.getValue().capacity();
+			this.evictions.increment();
+			it.remove();
+		}
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	// Returns the ratio of the blocks served from memory.
+	public double getHitRatio() {
+		long hits = this.getHits();
+		long total = hits + this.getMisses();
+		return total > 0 ? hits / (double)total : 0;
+	}
+
+	public String toString() {
+		return String.format("%d/%d byte(s), %d hit(s), %d miss(es) " +
+				"(%.1f%% hits), %d eviction(s)",
+			this.getSize(),
+			this.getCapacity(),
+			this.getHits(),
+			this.getMisses(),
+			100 * this.getHitRatio(),
+			this.getEvictions());
+	}
+
+	private static long getGlobalCapacity() {
+		String size = System.getenv("TTORRENT_READ_CACHE");
+
+		if (size != null) {
+			try {
+				return Math.max(0, Long.parseLong(size)) * 1024 * 1024;
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return 0;
+	}
+}
@@ -0,0 +1,294 @@
+package pl.uksw.edu.javatorrent.client;
+
+import pl.uksw.edu.javatorrent.client.peer.TokenBucket;
+import pl.uksw.edu.javatorrent.client.storage.TorrentByteStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks pieces of a torrent against the data already on disk. Files are
+// read sequentially by TTORRENT_CHECK_READERS reader threads, capped at
+// TTORRENT_CHECK_MAX_RATE KB/s, while digest workers hash the buffers.
+class PieceChecker {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(PieceChecker.class);
+
+	private static final int DEFAULT_READERS = 2;
+
+	// Maximum amount of memory used by the piece buffers.
+	private static final long MAX_BUFFERS_SIZE = 64*1024*1024;
+
+	private final TorrentByteStorage bucket;
+	private final ConcurrentLinkedQueue<List<Piece>> files;
+	private final int readers;
+	private final int workers;
+	private final TokenBucket limit;
+
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final BlockingQueue<Job> jobs;
+	private final CountDownLatch done;
+
+	private final AtomicLong checkedPieces;
+	private final AtomicLong checkedBytes;
+	private final long totalBytes;
+	private final long started;
+
+	private volatile boolean cancelled;
+	private volatile IOException failure;
+
+	PieceChecker(TorrentByteStorage bucket, List<List<Piece>> files,
+			int workers) {
+		this.bucket = bucket;
+		this.files = new ConcurrentLinkedQueue<List<Piece>>(files);
+		this.readers = Math.max(1, Math.min(files.size(), getReadersCount()));
+		this.workers = workers;
+		this.limit = new TokenBucket(null, getMaxRate());
+
+		long pieceLength = 0;
+		long totalBytes = 0;
+		for (List<Piece> pieces : files) {
+			for (Piece piece : pieces) {
+				pieceLength = Math.max(pieceLength, piece.size());
+				totalBytes += piece.size();
+			}
+		}
+
+		int count = (int)Math.max(this.readers + 1,
+			Math.min(2 * this.workers + this.readers,
+				MAX_BUFFERS_SIZE / Math.max(1, pieceLength)));
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(count);
+		for (int i = 0; i < count; i++) {
+			// TODO: remove cast to int when large ByteBuffer support is
+			// implemented in Java.
+			this.buffers.add(ByteBuffer.allocate((int)pieceLength));
+		}
+
+		this.jobs = new ArrayBlockingQueue<Job>(count + this.workers);
+		this.done = new CountDownLatch(this.readers + this.workers);
+
+		this.checkedPieces = new AtomicLong();
+		this.checkedBytes = new AtomicLong();
+		this.totalBytes = totalBytes;
+		this.started = System.currentTimeMillis();
+	}
+
+	void start() {
+		logger.debug("Checking {} byte(s) with {} reader(s) and {} digest " +
+			"worker(s), reads limited to {}.",
+			new Object[] {
+				this.totalBytes,
+				this.readers,
+				this.workers,
+				this.limit
+			});
+
+		final CountDownLatch reading = new CountDownLatch(this.readers);
+		for (int i = 0; i < this.readers; i++) {
+			this.startThread("bt-check-reader-" + i, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						read();
+					} finally {
+						reading.countDown();
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		for (int i = 0; i < this.workers; i++) {
+			this.startThread("bt-check-digest-" + i, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						digest(reading);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+	}
+
+	boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException, IOException {
+		boolean completed = this.done.await(timeout, unit);
+		if (this.failure != null) {
+			throw this.failure;
+		}
+
+		return completed;
+	}
+
+	void cancel() {
+		this.cancelled = true;
+	}
+
+	// Returns the percentage of the bytes to check that were checked so far.
+	float getCompletion() {
+		return this.totalBytes > 0
+			? 100f * this.checkedBytes.get() / this.totalBytes
+			: 100f;
+	}
+
+	// Returns the average checking rate so far, in bytes per second.
+	float getRate() {
+		long elapsed = System.currentTimeMillis() - this.started;
+		return elapsed > 0 ? this.checkedBytes.get() * 1000f / elapsed : 0;
+	}
+
+	long getCheckedPieces() {
+		return this.checkedPieces.get();
+	}
+
+	private void startThread(String name, Runnable task) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void read() {
+		List<Piece> pieces;
+		while (!this.cancelled && (pieces = this.files.poll()) != null) {
+			for (Piece piece : pieces) {
+				if (this.cancelled) {
+					return;
+				}
+
+				try {
+					ByteBuffer buffer = null;
+					while (buffer == null) {
+						if (this.cancelled) {
+							return;
+						}
+
+						buffer = this.buffers.poll(100, TimeUnit.MILLISECONDS);
+					}
+
+					buffer.clear();
+					buffer.limit((int)piece.size());
+
+					this.throttle(piece.size());
+					this.bucket.read(buffer, piece.getOffset());
+					buffer.flip();
+
+					Job job = new Job(piece, buffer);
+					while (!this.jobs.offer(job, 100, TimeUnit.MILLISECONDS)) {
+						if (this.cancelled) {
+							return;
+						}
+					}
+				} catch (IOException ioe) {
+					this.fail(new IOException("Error while reading " + piece +
+						" for checking!", ioe));
+					return;
+				} catch (InterruptedException ie) {
+					this.cancelled = true;
+					return;
+				}
+			}
+		}
+	}
+
+	private void throttle(long bytes) throws InterruptedException {
+		while (bytes > 0) {
+			long granted = this.limit.claim(bytes);
+			if (granted == 0) {
+				Thread.sleep(Math.max(1, this.limit.getDelayMillis(bytes)));
+			}
+
+			bytes -= granted;
+		}
+	}
+
+	private void digest(CountDownLatch reading) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			this.fail(new IOException("SHA-1 digests are not available!",
+				nsae));
+			return;
+		}
+
+		try {
+			while (!this.cancelled) {
+				Job job = this.jobs.poll(100, TimeUnit.MILLISECONDS);
+				if (job == null) {
+					if (reading.getCount() == 0 && this.jobs.isEmpty()) {
+						return;
+					}
+
+					continue;
+				}
+
+				job.piece.validate(job.buffer, digest);
+				this.checkedBytes.addAndGet(job.piece.size());
+				this.checkedPieces.incrementAndGet();
+				this.buffers.put(job.buffer);
+			}
+		} catch (InterruptedException ie) {
+			this.cancelled = true;
+		}
+	}
+
+	private void fail(IOException ioe) {
+		this.failure = ioe;
+		this.cancelled = true;
+	}
+
+	private static int getReadersCount() {
+		String readers = System.getenv("TTORRENT_CHECK_READERS");
+
+		if (readers != null) {
+			try {
+				int count = Integer.parseInt(readers);
+				if (count > 0) {
+					return count;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return DEFAULT_READERS;
+	}
+
+	private static double getMaxRate() {
+		String rate = System.getenv("TTORRENT_CHECK_MAX_RATE");
+
+		if (rate != null) {
+			try {
+				return Double.parseDouble(rate);
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return 0;
+	}
+
+	private static class Job {
+
+		private final Piece piece;
+		private final ByteBuffer buffer;
+
+		private Job(Piece piece, ByteBuffer buffer) {
+			this.piece = piece;
+			this.buffer = buffer;
+		}
+	}
+}
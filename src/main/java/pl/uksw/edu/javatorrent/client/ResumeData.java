@@ -0,0 +1,172 @@
+package pl.uksw.edu.javatorrent.client;
+
+import pl.uksw.edu.javatorrent.bcodec.BDecoder;
+import pl.uksw.edu.javatorrent.bcodec.BEValue;
+import pl.uksw.edu.javatorrent.bcodec.BEncoder;
+import pl.uksw.edu.javatorrent.bcodec.InvalidBEncodingException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Fast-resume record of a torrent, trusted on startup instead of checking
+// the data again as long as the files kept their size and modification time.
+class ResumeData {
+
+	private final byte[] infoHash;
+	private final BitSet completed;
+	private final long[] sizes;
+	private final long[] modified;
+	private final Map<Integer, BitSet> partial;
+
+	ResumeData(byte[] infoHash, BitSet completed, Map<Integer, BitSet> partial,
+			List<File> files) {
+		this(infoHash, completed, partial, new long[files.size()],
+			new long[files.size()]);
+
+		for (int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			this.sizes[i] = file.exists() ? file.length() : -1;
+			this.modified[i] = file.exists() ? file.lastModified() : 0;
+		}
+	}
+
+	private ResumeData(byte[] infoHash, BitSet completed,
+			Map<Integer, BitSet> partial, long[] sizes, long[] modified) {
+		this.infoHash = infoHash;
+		this.completed = completed;
+		this.partial = partial;
+		this.sizes = sizes;
+		this.modified = modified;
+	}
+
+	BitSet getCompleted() {
+		return this.completed;
+	}
+
+	Map<Integer, BitSet> getPartial() {
+		return this.partial;
+	}
+
+	// Tells whether this record was written for the given torrent, and its
+	// files have not changed on disk since.
+	boolean matches(byte[] infoHash, List<File> files) {
+		if (!Arrays.equals(this.infoHash, infoHash) ||
+				this.sizes.length != files.size()) {
+			return false;
+		}
+
+		for (int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			long size = file.exists() ? file.length() : -1;
+			long modified = file.exists() ? file.lastModified() : 0;
+			if (size != this.sizes[i] || modified != this.modified[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	void save(File target) throws IOException {
+		List<BEValue> files = new ArrayList<BEValue>();
+		for (int i = 0; i < this.sizes.length; i++) {
+			Map<String, BEValue> file = new HashMap<String, BEValue>();
+			file.put("length", new BEValue(this.sizes[i]));
+			file.put("mtime", new BEValue(this.modified[i]));
+			files.add(new BEValue(file));
+		}
+
+		List<BEValue> partial = new ArrayList<BEValue>();
+		for (Map.Entry<Integer, BitSet> entry : this.partial.entrySet()) {
+			Map<String, BEValue> piece = new HashMap<String, BEValue>();
+			piece.put("piece", new BEValue(entry.getKey()));
+			piece.put("blocks", new BEValue(entry.getValue().toByteArray()));
+			partial.add(new BEValue(piece));
+		}
+
+		Map<String, BEValue> record = new HashMap<String, BEValue>();
+		record.put("info hash", new BEValue(this.infoHash));
+		record.put("pieces", new BEValue(this.completed.toByteArray()));
+		record.put("files", new BEValue(files));
+		record.put("partial", new BEValue(partial));
+
+		File temporary = new File(target.getAbsolutePath() + ".tmp");
+		OutputStream out = new FileOutputStream(temporary);
+		try {
+			BEncoder.bencode(record, out);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+
+		FileUtils.deleteQuietly(target);
+		FileUtils.moveFile(temporary, target);
+	}
+
+	// Returns null if there is no record.
+	static ResumeData load(File source) throws IOException {
+		if (!source.exists()) {
+			return null;
+		}
+
+		InputStream in = new FileInputStream(source);
+		try {
+			BEValue decoded = BDecoder.bdecode(in);
+			if (decoded == null) {
+				throw new IOException("Incomplete resume record " +
+					source + "!");
+			}
+
+			Map<String, BEValue> record = decoded.getMap();
+
+			List<BEValue> files = get(record, "files", source).getList();
+			long[] sizes = new long[files.size()];
+			long[] modified = new long[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				Map<String, BEValue> file = files.get(i).getMap();
+				sizes[i] = get(file, "length", source).getLong();
+				modified[i] = get(file, "mtime", source).getLong();
+			}
+
+			Map<Integer, BitSet> partial = new LinkedHashMap<Integer, BitSet>();
+			for (BEValue value : get(record, "partial", source).getList()) {
+				Map<String, BEValue> piece = value.getMap();
+				partial.put(get(piece, "piece", source).getInt(),
+					BitSet.valueOf(get(piece, "blocks", source).getBytes()));
+			}
+
+			return new ResumeData(
+				get(record, "info hash", source).getBytes(),
+				BitSet.valueOf(get(record, "pieces", source).getBytes()),
+				partial, sizes, modified);
+		} catch (InvalidBEncodingException ibee) {
+			throw new IOException("Invalid resume record " + source + "!",
+				ibee);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static BEValue get(Map<String, BEValue> map, String key,
+		File source) throws IOException {
+		BEValue value = map.get(key);
+		if (value == null) {
+			throw new IOException("Incomplete resume record " + source +
+				" (no " + key + ")!");
+		}
+
+		return value;
+	}
+}
@@ -3,10 +3,15 @@ package pl.uksw.edu.javatorrent.client;
 
 import pl.uksw.edu.javatorrent.bcodec.InvalidBEncodingException;
 import pl.uksw.edu.javatorrent.client.peer.PeerActivityListener;
+import pl.uksw.edu.javatorrent.client.peer.Rate;
 import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
+import pl.uksw.edu.javatorrent.client.peer.TokenBucket;
 import pl.uksw.edu.javatorrent.client.storage.FileCollectionStorage;
 import pl.uksw.edu.javatorrent.client.storage.FileStorage;
+import pl.uksw.edu.javatorrent.client.storage.MappedFileStorage;
 import pl.uksw.edu.javatorrent.client.storage.TorrentByteStorage;
+import pl.uksw.edu.javatorrent.client.storage.WriteBackStorage;
+import pl.uksw.edu.javatorrent.client.strategy.PieceAvailabilityIndex;
 import pl.uksw.edu.javatorrent.client.strategy.RequestStrategy;
 import pl.uksw.edu.javatorrent.client.strategy.RequestStrategyImplRarest;
 import pl.uksw.edu.javatorrent.common.Torrent;
@@ -20,17 +25,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 	private static final Logger logger =
 		LoggerFactory.getLogger(SharedTorrent.class);
 
-	private static final float ENG_GAME_COMPLETION_RATIO = 0.95f;
 	private static final RequestStrategy DEFAULT_REQUEST_STRATEGY = new RequestStrategyImplRarest();
 
 	private boolean stop;
@@ -40,20 +41,37 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	private long left;
 
 	private final TorrentByteStorage bucket;
+	private final WriteBackStorage writeCache;
+	private final List<FileStorage> fileStorages;
+	private final long[] fileOffsets;
+	private final FilePriority[] filePriorities;
 
 	private final int pieceLength;
 	private final ByteBuffer piecesHashes;
+	private final File resumeFile;
+	private final Object resumeLock;
 
 	private boolean initialized;
 	private Piece[] pieces;
-	private SortedSet<Piece> rarest;
+	private PieceAvailabilityIndex rarest;
 	private BitSet completedPieces;
 	private BitSet requestedPieces;
+	private BitSet wantedPieces;
+	private BitSet[] priorityPieces;
+	private volatile boolean endGame;
 	private RequestStrategy requestStrategy;
 	
 	private double maxUploadRate = 0.0;
 	private double maxDownloadRate = 0.0;
 
+	private final Rate uploadRate = new Rate();
+	private final Rate downloadRate = new Rate();
+
+	private final TokenBucket uploadLimit =
+		new TokenBucket(TokenBucket.getGlobalUpload());
+	private final TokenBucket downloadLimit =
+		new TokenBucket(TokenBucket.getGlobalDownload());
+
 	public SharedTorrent(Torrent torrent, File destDir)
 		throws FileNotFoundException, IOException, NoSuchAlgorithmException {
 		this(torrent, destDir, false);
@@ -106,7 +124,11 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 					"Error reading torrent meta-info fields!");
 		}
 
-		List<FileStorage> files = new LinkedList<FileStorage>();
+		this.fileStorages = new ArrayList<FileStorage>(this.files.size());
+		this.fileOffsets = new long[this.files.size()];
+		this.filePriorities = new FilePriority[this.files.size()];
+		Arrays.fill(this.filePriorities, FilePriority.NORMAL);
+
 		long offset = 0L;
 		for (Torrent.TorrentFile file : this.files) {
 			File actual = new File(parent, file.file.getPath());
@@ -116,11 +138,22 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 					"to break directory jail!");
 			}
 
-			actual.getParentFile().mkdirs();
-			files.add(new FileStorage(actual, offset, file.size));
+			this.fileOffsets[this.fileStorages.size()] = offset;
+			this.fileStorages.add(isMemoryMapped()
+				? new MappedFileStorage(actual, offset, file.size)
+				: new FileStorage(actual, offset, file.size));
 			offset += file.size;
 		}
-		this.bucket = new FileCollectionStorage(files, this.getSize());
+		TorrentByteStorage storage = new FileCollectionStorage(
+			this.fileStorages, this.getSize());
+		long cache = getWriteCacheSize();
+		this.writeCache = cache > 0
+			? new WriteBackStorage(storage, cache)
+			: null;
+		this.bucket = this.writeCache != null ? this.writeCache : storage;
+		this.resumeFile = new File(getResumeDirectory(parent),
+			"." + this.getHexInfoHash() + ".resume");
+		this.resumeLock = new Object();
 
 		this.stop = false;
 
@@ -130,9 +163,14 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 		this.initialized = false;
 		this.pieces = new Piece[0];
-		this.rarest = Collections.synchronizedSortedSet(new TreeSet<Piece>());
+		this.rarest = new PieceAvailabilityIndex(0);
 		this.completedPieces = new BitSet();
 		this.requestedPieces = new BitSet();
+		this.wantedPieces = new BitSet();
+		this.priorityPieces = new BitSet[FilePriority.values().length];
+		for (int i = 0; i < this.priorityPieces.length; i++) {
+			this.priorityPieces[i] = new BitSet();
+		}
 
 		//TODO: should switch to guice
 		this.requestStrategy = requestStrategy;
@@ -148,6 +186,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	}
 	public void setMaxUploadRate(double rate) {
 		this.maxUploadRate = rate;
+		this.uploadLimit.setRate(rate);
 	}
 
 	public double getMaxDownloadRate() {
@@ -156,6 +195,27 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 	public void setMaxDownloadRate(double rate) {
 		this.maxDownloadRate = rate;
+		this.downloadLimit.setRate(rate);
+	}
+
+	public Rate getUploadRate() {
+		return this.uploadRate;
+	}
+
+	public Rate getDownloadRate() {
+		return this.downloadRate;
+	}
+
+	public TokenBucket getUploadLimit() {
+		return this.uploadLimit;
+	}
+
+	public TokenBucket getDownloadLimit() {
+		return this.downloadLimit;
+	}
+
+	public boolean whenWritable(Runnable task) {
+		return this.writeCache != null && this.writeCache.whenDrained(task);
 	}
 
 
@@ -194,50 +254,99 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		int step = 10;
 
 		this.pieces = new Piece[nPieces];
+		this.rarest = new PieceAvailabilityIndex(nPieces);
 		this.completedPieces = new BitSet(nPieces);
 		this.piecesHashes.clear();
+		this.updatePiecePriorities(0, nPieces - 1);
+
+		ResumeData resume = this.isSeeder() ? null : this.loadResumeData();
+
+		// Pieces are grouped by the file they start in, for each file to be
+		// read sequentially. Pieces of skipped files are not checked, so that
+		// their files are not opened.
+		List<List<Piece>> files = new ArrayList<List<Piece>>();
+		List<Piece> file = null;
+		int current = -1;
+		int index = 0;
+
+		for (int idx=0; idx<nPieces; idx++) {
+			byte[] hash = new byte[Torrent.PIECE_HASH_SIZE];
+			this.piecesHashes.get(hash);
+
+			long off = ((long)idx) * this.pieceLength;
+			long len = Math.min(
+				this.bucket.size() - off,
+				this.pieceLength);
+
+			this.pieces[idx] = new Piece(this.bucket, idx, off, len, hash,
+				this.isSeeder());
+
+			if (this.isSeeder()) {
+				this.pieces[idx].validate();
+			} else if (resume != null) {
+				this.pieces[idx].restore(resume.getCompleted().get(idx),
+					Piece.WRITE_THROUGH ? resume.getPartial().get(idx) : null);
+			} else if (this.wantedPieces.get(idx)) {
+				while (index + 1 < this.fileOffsets.length &&
+						this.fileOffsets[index + 1] <= off) {
+					index++;
+				}
 
-		ExecutorService executor = Executors.newFixedThreadPool(threads);
-		List<Future<Piece>> results = new LinkedList<Future<Piece>>();
+				if (index != current) {
+					file = new ArrayList<Piece>();
+					files.add(file);
+					current = index;
+				}
 
-		try {
+				file.add(this.pieces[idx]);
+			}
+		}
+
+		if (resume != null) {
+			logger.info("Restored {} piece(s) of {} from {}.",
+				new Object[] {
+					resume.getCompleted().cardinality(),
+					this.getName(),
+					this.resumeFile
+				});
+		} else {
 			logger.info("Analyzing local data for {} with {} threads ({} pieces)...",
 				new Object[] { this.getName(), threads, nPieces });
-			for (int idx=0; idx<nPieces; idx++) {
-				byte[] hash = new byte[Torrent.PIECE_HASH_SIZE];
-				this.piecesHashes.get(hash);
-
-				long off = ((long)idx) * this.pieceLength;
-				long len = Math.min(
-					this.bucket.size() - off,
-					this.pieceLength);
-
-				this.pieces[idx] = new Piece(this.bucket, idx, off, len, hash,
-					this.isSeeder());
 
-				Callable<Piece> hasher = new Piece.CallableHasher(this.pieces[idx]);
-				results.add(executor.submit(hasher));
-
-				if (results.size() >= threads) {
-					this.validatePieces(results);
-				}
-
-				if (idx / (float)nPieces * 100f > step) {
-					logger.info("  ... {}% complete", step);
-					step += 10;
+			PieceChecker checker = new PieceChecker(this.bucket, files, threads);
+			checker.start();
+
+			try {
+				while (!checker.await(1, TimeUnit.SECONDS)) {
+					if (this.stop) {
+						throw new InterruptedException("Torrent data analysis " +
+							"interrupted.");
+					}
+
+					if (checker.getCompletion() > step) {
+						logger.info("  ... {}% complete ({} MB/s)",
+							(int)checker.getCompletion(),
+							String.format("%.1f", checker.getRate() / 1024 / 1024));
+						step = ((int)checker.getCompletion() / 10 + 1) * 10;
+					}
 				}
+			} finally {
+				checker.cancel();
 			}
 
-			this.validatePieces(results);
-		} finally {
-			executor.shutdown();
-			while (!executor.isTerminated()) {
-				if (this.stop) {
-					throw new InterruptedException("Torrent data analysis " +
-						"interrupted.");
-				}
+			logger.info("Checked {} piece(s) of {} at {} MB/s.",
+				new Object[] {
+					checker.getCheckedPieces(),
+					this.getName(),
+					String.format("%.1f", checker.getRate() / 1024 / 1024)
+				});
+		}
 
-				Thread.sleep(10);
+		for (Piece piece : this.pieces) {
+			if (piece.isValid()) {
+				this.completedPieces.set(piece.getIndex());
+				this.rarest.remove(piece.getIndex());
+				this.left -= piece.size();
 			}
 		}
 
@@ -250,34 +359,102 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 				this.completedPieces.cardinality(),
 				this.pieces.length
 			});
+		this.left = this.computeLeft();
 		this.initialized = true;
 	}
 
-	private void validatePieces(List<Future<Piece>> results)
-			throws IOException {
+	public void close() {
+		// Disk jobs still running for this torrent may need its lock to
+		// complete: they are waited for first.
 		try {
-			for (Future<Piece> task : results) {
-				Piece piece = task.get();
-				if (this.pieces[piece.getIndex()].isValid()) {
-					this.completedPieces.set(piece.getIndex());
-					this.left -= piece.size();
-				}
+			DiskIOExecutor.getGlobal().await(this);
+		} catch (InterruptedException ie) {
+			logger.warn("Interrupted while waiting for disk jobs of {}.",
+				this.getName());
+		}
+
+		synchronized (this) {
+			try {
+				this.bucket.close();
+			} catch (IOException ioe) {
+				logger.error("Error closing torrent byte storage: {}",
+					ioe.getMessage());
 			}
 
-			results.clear();
-		} catch (Exception e) {
-			throw new IOException("Error while hashing a torrent piece!", e);
+			PieceCache.getGlobal().invalidate(this.pieces);
 		}
+
+		this.saveResumeData();
 	}
 
+	// The pieces' state is taken under the torrent's lock, but the storage is
+	// only flushed once it is released: a write racing with the record makes
+	// it stale rather than wrong.
+	public void saveResumeData() {
+		if (!this.isInitialized() || this.isSeeder()) {
+			return;
+		}
+
+		synchronized (this.resumeLock) {
+			BitSet completed;
+			Map<Integer, BitSet> partial = new TreeMap<Integer, BitSet>();
+			synchronized (this) {
+				completed = this.getCompletedPieces();
+				if (Piece.WRITE_THROUGH) {
+					for (Piece piece : this.pieces) {
+						BitSet received = piece.getReceivedBlocks();
+						if (received != null && !completed.get(piece.getIndex())) {
+							partial.put(piece.getIndex(), received);
+						}
+					}
+				}
+			}
+
+			List<File> files = new ArrayList<File>(this.fileStorages.size());
+			for (FileStorage file : this.fileStorages) {
+				files.add(file.getFile());
+			}
 
-	public synchronized void close() {
+			try {
+				this.bucket.flush();
+				new ResumeData(this.getInfoHash(), completed, partial, files)
+					.save(this.resumeFile);
+				logger.debug("Saved resume data of {} to {}.", this.getName(),
+					this.resumeFile);
+			} catch (IOException ioe) {
+				logger.warn("Error saving resume data of {}: {}",
+					this.getName(), ioe.getMessage());
+			}
+		}
+	}
+
+	// Returns null if there is no record, or the files changed since.
+	private ResumeData loadResumeData() {
+		ResumeData resume;
 		try {
-			this.bucket.close();
+			resume = ResumeData.load(this.resumeFile);
 		} catch (IOException ioe) {
-			logger.error("Error closing torrent byte storage: {}",
-				ioe.getMessage());
+			logger.warn("Error loading resume data of {}: {}",
+				this.getName(), ioe.getMessage());
+			return null;
+		}
+
+		if (resume == null) {
+			return null;
 		}
+
+		List<File> files = new ArrayList<File>(this.fileStorages.size());
+		for (FileStorage file : this.fileStorages) {
+			files.add(file.getFile());
+		}
+
+		if (!resume.matches(this.getInfoHash(), files)) {
+			logger.info("Files of {} changed since {} was written, " +
+				"checking local data.", this.getName(), this.resumeFile);
+			return null;
+		}
+
+		return resume;
 	}
 	public Piece getPiece(int index) {
 		if (this.pieces == null) {
@@ -335,9 +512,17 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	}
 
 	public synchronized boolean isComplete() {
-		return this.pieces.length > 0 &&
-			this.completedPieces.cardinality() == this.pieces.length;
+		if (this.pieces.length == 0) {
+			return false;
+		}
+
+		BitSet missing = (BitSet)this.wantedPieces.clone();
+		missing.andNot(this.completedPieces);
+		return missing.isEmpty();
 	}
+
+	// Moves the files that were completely downloaded to their final
+	// location.
 	public synchronized void finish() throws IOException {
 		if (!this.isInitialized()) {
 			throw new IllegalStateException("Torrent not yet initialized!");
@@ -347,11 +532,164 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			throw new IllegalStateException("Torrent download is not complete!");
 		}
 
-		this.bucket.finish();
+		if (this.completedPieces.cardinality() == this.pieces.length) {
+			this.bucket.finish();
+			return;
+		}
+
+		// Files are finished on their own, behind the back of the write-back
+		// cache if there is one: their data has to be written out first.
+		this.bucket.flush();
+
+		for (int i = 0; i < this.fileStorages.size(); i++) {
+			if (this.isFileComplete(i)) {
+				this.fileStorages.get(i).finish();
+			}
+		}
 	}
 
 	public synchronized boolean isFinished() {
-		return this.isComplete() && this.bucket.isFinished();
+		if (!this.isComplete()) {
+			return false;
+		}
+
+		if (this.completedPieces.cardinality() == this.pieces.length) {
+			return this.bucket.isFinished();
+		}
+
+		for (int i = 0; i < this.fileStorages.size(); i++) {
+			if (this.isFileComplete(i) &&
+					!this.fileStorages.get(i).isFinished()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Empty files are complete unless skipped, so that they get created.
+	private boolean isFileComplete(int file) {
+		long size = this.fileStorages.get(file).size();
+		if (size == 0) {
+			return this.filePriorities[file] != FilePriority.SKIP;
+		}
+
+		int first = (int)(this.fileOffsets[file] / this.pieceLength);
+		int last = (int)((this.fileOffsets[file] + size - 1) / this.pieceLength);
+		int missing = this.completedPieces.nextClearBit(first);
+		return missing > last;
+	}
+
+	public synchronized FilePriority getFilePriority(int file) {
+		return this.filePriorities[file];
+	}
+
+	// Best set before the torrent is initialized: pieces of skipped files
+	// aren't checked, and are downloaded again if the file is selected later.
+	public synchronized void setFilePriority(int file, FilePriority priority) {
+		if (this.filePriorities[file] == priority) {
+			return;
+		}
+
+		logger.debug("Priority of {} set to {}.",
+			this.getFilenames().get(file), priority);
+		this.filePriorities[file] = priority;
+
+		if (!this.isInitialized()) {
+			return;
+		}
+
+		long size = this.fileStorages.get(file).size();
+		if (size > 0) {
+			this.updatePiecePriorities(
+				(int)(this.fileOffsets[file] / this.pieceLength),
+				(int)((this.fileOffsets[file] + size - 1) / this.pieceLength));
+		}
+
+		this.left = this.computeLeft();
+		this.updateEndGame();
+	}
+
+	// Sets the priorities of the given range of pieces to the highest
+	// priority of the files they overlap.
+	private void updatePiecePriorities(int first, int last) {
+		FilePriority[] priorities = new FilePriority[last - first + 1];
+		Arrays.fill(priorities, FilePriority.SKIP);
+
+		for (int i = 0; i < this.fileStorages.size(); i++) {
+			long size = this.fileStorages.get(i).size();
+			if (size == 0) {
+				continue;
+			}
+
+			int from = Math.max(first,
+				(int)(this.fileOffsets[i] / this.pieceLength));
+			int to = Math.min(last,
+				(int)((this.fileOffsets[i] + size - 1) / this.pieceLength));
+			for (int piece = from; piece <= to; piece++) {
+				if (this.filePriorities[i].compareTo(priorities[piece - first]) > 0) {
+					priorities[piece - first] = this.filePriorities[i];
+				}
+			}
+		}
+
+		for (int piece = first; piece <= last; piece++) {
+			FilePriority priority = priorities[piece - first];
+			for (BitSet pieces : this.priorityPieces) {
+				pieces.clear(piece);
+			}
+
+			this.priorityPieces[priority.ordinal()].set(piece);
+			this.wantedPieces.set(piece, priority != FilePriority.SKIP);
+		}
+	}
+
+	// Returns the number of bytes of the pieces of the files that are not
+	// skipped still to download.
+	private long computeLeft() {
+		long left = 0;
+		for (int i = this.wantedPieces.nextSetBit(0); i >= 0;
+				i = this.wantedPieces.nextSetBit(i+1)) {
+			if (!this.completedPieces.get(i)) {
+				left += this.pieces[i].size();
+			}
+		}
+
+		return left;
+	}
+
+	// Returns the directory resume records are kept in, as set by the
+	// TTORRENT_RESUME_DIR environment variable, or the torrent's parent
+	// directory.
+	private static File getResumeDirectory(File parent) {
+		String directory = System.getenv("TTORRENT_RESUME_DIR");
+
+		if (directory != null && new File(directory).isDirectory()) {
+			return new File(directory);
+		}
+
+		return parent;
+	}
+
+	private static boolean isMemoryMapped() {
+		return Boolean.parseBoolean(System.getenv("TTORRENT_MMAP"));
+	}
+
+	// Returns the size of the write-back cache put in front of the torrent's
+	// files, as set in MB by the TTORRENT_WRITE_CACHE environment variable,
+	// or 0 to write blocks out as they complete.
+	private static long getWriteCacheSize() {
+		String size = System.getenv("TTORRENT_WRITE_CACHE");
+
+		if (size != null) {
+			try {
+				return Math.max(0, Long.parseLong(size)) * 1024 * 1024;
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return 0;
 	}
 	public float getCompletion() {
 		return this.isInitialized()
@@ -364,17 +702,17 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			return;
 		}
 
-		this.left -= piece.size();
+		if (this.wantedPieces.get(piece.getIndex())) {
+			this.left -= piece.size();
+		}
+
 		this.completedPieces.set(piece.getIndex());
+		this.rarest.remove(piece.getIndex());
 	}
 	@Override
 	public synchronized void handlePeerChoked(SharingPeer peer) {
-		Piece piece = peer.getRequestedPiece();
-
-		if (piece != null) {
-			this.requestedPieces.set(piece.getIndex(), false);
-		}
-
+		// The peer gives the blocks it requested back to their pieces, which
+		// stay in progress so that other peers can finish them.
 		logger.trace("Peer {} choked, we now have {} outstanding " +
 				"request(s): {}",
 			new Object[] {
@@ -385,33 +723,50 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	}
 	@Override
 	public synchronized void handlePeerReady(SharingPeer peer) {
+		Piece started = this.chooseStartedPiece(peer);
+		if (started != null) {
+			logger.trace("Requesting remaining blocks of {} from {}.",
+				started, peer);
+			peer.downloadPiece(started);
+			return;
+		}
+
 		BitSet interesting = peer.getAvailablePieces();
 		interesting.andNot(this.completedPieces);
 		interesting.andNot(this.requestedPieces);
+		interesting.and(this.wantedPieces);
 
 		logger.trace("Peer {} is ready and has {} interesting piece(s).",
 			peer, interesting.cardinality());
 
 		if (interesting.cardinality() == 0) {
-			interesting = peer.getAvailablePieces();
-			interesting.andNot(this.completedPieces);
-			if (interesting.cardinality() == 0) {
+			this.updateEndGame();
+			if (!this.endGame) {
 				logger.trace("No interesting piece from {}!", peer);
 				return;
 			}
 
-			if (this.completedPieces.cardinality() <
-					ENG_GAME_COMPLETION_RATIO * this.pieces.length) {
-				logger.trace("Not far along enough to warrant end-game mode.");
+			Piece duplicated = this.chooseEndGamePiece(peer);
+			if (duplicated == null) {
+				logger.trace("Nothing left to request from {} in end-game.",
+					peer);
 				return;
 			}
 
-			logger.trace("Possible end-game, we're about to request a piece " +
-				"that was already requested from another peer.");
+			logger.trace("End-game: requesting blocks of {} from {} too.",
+				duplicated, peer);
+			peer.downloadPiece(duplicated);
+			return;
+		}
+
+		Piece chosen = this.choosePiece(peer, interesting);
+		if (chosen == null) {
+			logger.trace("No piece chosen for {}!", peer);
+			return;
 		}
 
-		Piece chosen = requestStrategy.choosePiece(rarest, interesting, pieces);
 		this.requestedPieces.set(chosen.getIndex());
+		this.updateEndGame();
 
 		logger.trace("Requesting {} from {}, we now have {} " +
 				"outstanding request(s): {}",
@@ -424,17 +779,98 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 
 		peer.downloadPiece(chosen);
 	}
+	// Has the request strategy choose among the interesting pieces of the
+	// highest priority.
+	private Piece choosePiece(SharingPeer peer, BitSet interesting) {
+		for (int i = this.priorityPieces.length - 1;
+				i > FilePriority.SKIP.ordinal(); i--) {
+			BitSet candidates = (BitSet)interesting.clone();
+			candidates.and(this.priorityPieces[i]);
+			if (!candidates.isEmpty()) {
+				return this.requestStrategy.choosePiece(peer, this.rarest,
+					candidates, this.pieces);
+			}
+		}
+
+		return null;
+	}
+
+	// Finishing started pieces first keeps few pieces partially downloaded,
+	// and hands the blocks given back by other peers over to this one.
+	private Piece chooseStartedPiece(SharingPeer peer) {
+		BitSet started = peer.getAvailablePieces();
+		started.and(this.requestedPieces);
+		started.and(this.wantedPieces);
+		started.andNot(this.completedPieces);
+
+		for (int i = started.nextSetBit(0); i >= 0;
+				i = started.nextSetBit(i+1)) {
+			if (this.pieces[i].hasClaimableBlocks(peer, 1)) {
+				return this.pieces[i];
+			}
+		}
+
+		return null;
+	}
+
+	// Returns a piece the given peer has, and that it is not already
+	// downloading, with blocks that may be requested from one more peer in
+	// end-game mode.
+	private Piece chooseEndGamePiece(SharingPeer peer) {
+		BitSet started = peer.getAvailablePieces();
+		started.and(this.requestedPieces);
+		started.and(this.wantedPieces);
+		started.andNot(this.completedPieces);
+
+		for (Piece piece : peer.getRequestedPieces()) {
+			started.clear(piece.getIndex());
+		}
+
+		for (int i = started.nextSetBit(0); i >= 0;
+				i = started.nextSetBit(i+1)) {
+			if (this.pieces[i].hasClaimableBlocks(peer,
+					SharingPeer.END_GAME_MAX_REQUESTS)) {
+				return this.pieces[i];
+			}
+		}
+
+		return null;
+	}
+
+	// Read without the torrent's lock, so that peers can check it while
+	// holding their own.
+	public boolean isEndGame() {
+		return this.endGame;
+	}
+
+	private void updateEndGame() {
+		BitSet missing = (BitSet)this.wantedPieces.clone();
+		missing.andNot(this.completedPieces);
+		int left = missing.cardinality();
+		missing.andNot(this.requestedPieces);
+		boolean endGame = left > 0 && missing.isEmpty();
+
+		if (endGame != this.endGame) {
+			logger.info("{} end-game mode for {} with {} piece(s) left.",
+				new Object[] {
+					endGame ? "Entering" : "Leaving",
+					this.getName(),
+					left
+				});
+			this.endGame = endGame;
+		}
+	}
+
 	@Override
 	public synchronized void handlePieceAvailability(SharingPeer peer,
 			Piece piece) {
 		if (!this.completedPieces.get(piece.getIndex()) &&
-			!this.requestedPieces.get(piece.getIndex())) {
+				this.wantedPieces.get(piece.getIndex())) {
 			peer.interesting();
 		}
 
-		this.rarest.remove(piece);
 		piece.seenAt(peer);
-		this.rarest.add(piece);
+		this.rarest.increment(piece.getIndex());
 
 		logger.trace("Peer {} contributes {} piece(s) [{}/{}/{}].",
 			new Object[] {
@@ -455,20 +891,12 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 	public synchronized void handleBitfieldAvailability(SharingPeer peer,
 			BitSet availablePieces) {
 		// Determine if the peer is interesting for us or not, and notify it.
-		BitSet interesting = (BitSet)availablePieces.clone();
-		interesting.andNot(this.completedPieces);
-		interesting.andNot(this.requestedPieces);
+		BitSet interesting = this.updateInterest(peer, availablePieces);
 
-		if (interesting.cardinality() == 0) {
-			peer.notInteresting();
-		} else {
-			peer.interesting();
-		}
 		for (int i = availablePieces.nextSetBit(0); i >= 0;
 				i = availablePieces.nextSetBit(i+1)) {
-			this.rarest.remove(this.pieces[i]);
 			this.pieces[i].seenAt(peer);
-			this.rarest.add(this.pieces[i]);
+			this.rarest.increment(i);
 		}
 
 		logger.trace("Peer {} contributes {} piece(s) ({} interesting) " +
@@ -483,6 +911,24 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 			});
 	}
 
+	public synchronized void updateInterest(SharingPeer peer) {
+		this.updateInterest(peer, peer.getAvailablePieces());
+	}
+
+	private BitSet updateInterest(SharingPeer peer, BitSet availablePieces) {
+		BitSet interesting = (BitSet)availablePieces.clone();
+		interesting.andNot(this.completedPieces);
+		interesting.and(this.wantedPieces);
+
+		if (interesting.cardinality() == 0) {
+			peer.notInteresting();
+		} else {
+			peer.interesting();
+		}
+
+		return interesting;
+	}
+
 	@Override
 	public synchronized void handlePieceSent(SharingPeer peer, Piece piece) {
 		logger.trace("Completed upload of {} to {}.", piece, peer);
@@ -493,6 +939,7 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 		Piece piece) throws IOException {
 		this.downloaded += piece.size();
 		this.requestedPieces.set(piece.getIndex(), false);
+		this.updateEndGame();
 
 		logger.trace("We now have {} piece(s) and {} outstanding request(s): {}",
 			new Object[] {
@@ -501,20 +948,20 @@ public class SharedTorrent extends Torrent implements PeerActivityListener {
 				this.requestedPieces
 			});
 	}
+	@Override
+	public void handleRequestTimeout(SharingPeer peer) {
+		logger.trace("Requests to {} timed out, their blocks are up for " +
+			"grabs again.", peer);
+	}
+
 	@Override
 	public synchronized void handlePeerDisconnected(SharingPeer peer) {
 		BitSet availablePieces = peer.getAvailablePieces();
 
 		for (int i = availablePieces.nextSetBit(0); i >= 0;
 				i = availablePieces.nextSetBit(i+1)) {
-			this.rarest.remove(this.pieces[i]);
 			this.pieces[i].noLongerAt(peer);
-			this.rarest.add(this.pieces[i]);
-		}
-
-		Piece requested = peer.getRequestedPiece();
-		if (requested != null) {
-			this.requestedPieces.set(requested.getIndex(), false);
+			this.rarest.decrement(i);
 		}
 
 		logger.debug("Peer {} went away with {} piece(s) [completed={}; available={}/{}]",
@@ -0,0 +1,89 @@
+package pl.uksw.edu.javatorrent.client.peer;
+
+import pl.uksw.edu.javatorrent.client.SharedTorrent;
+import pl.uksw.edu.javatorrent.common.protocol.PeerMessage;
+import pl.uksw.edu.javatorrent.common.protocol.PeerMessageVisitor;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+// Hands the messages decoded by a peer exchange to a MessageListener.
+class MessageListenerAdapter implements PeerMessageVisitor {
+
+	private final MessageListener listener;
+	private final SharedTorrent torrent;
+
+	MessageListenerAdapter(MessageListener listener, SharedTorrent torrent) {
+		this.listener = listener;
+		this.torrent = torrent;
+	}
+
+	MessageListener getListener() {
+		return this.listener;
+	}
+
+	@Override
+	public void onKeepAlive() {
+		this.listener.handleMessage(PeerMessage.KeepAliveMessage.craft());
+	}
+
+	@Override
+	public void onChoke() {
+		this.listener.handleMessage(PeerMessage.ChokeMessage.craft());
+	}
+
+	@Override
+	public void onUnchoke() {
+		this.listener.handleMessage(PeerMessage.UnchokeMessage.craft());
+	}
+
+	@Override
+	public void onInterested() {
+		this.listener.handleMessage(PeerMessage.InterestedMessage.craft());
+	}
+
+	@Override
+	public void onNotInterested() {
+		this.listener.handleMessage(PeerMessage.NotInterestedMessage.craft());
+	}
+
+	@Override
+	public void onHave(int piece) {
+		this.listener.handleMessage(PeerMessage.HaveMessage.craft(piece));
+	}
+
+	@Override
+	public void onBitfield(ByteBuffer bitfield) {
+		BitSet pieces = new BitSet(this.torrent.getPieceCount());
+		for (int i = 0; i < bitfield.remaining() * 8; i++) {
+			if ((bitfield.get(bitfield.position() + i/8) &
+					(1 << (7 - (i % 8)))) != 0) {
+				pieces.set(i);
+			}
+		}
+
+		this.listener.handleMessage(PeerMessage.BitfieldMessage.craft(pieces,
+			this.torrent.getPieceCount()));
+	}
+
+	@Override
+	public void onRequest(int piece, int offset, int length) {
+		this.listener.handleMessage(
+			PeerMessage.RequestMessage.craft(piece, offset, length));
+	}
+
+	@Override
+	public void onPiece(int piece, int offset, ByteBuffer block) {
+		ByteBuffer copy = ByteBuffer.allocate(block.remaining());
+		copy.put(block.duplicate());
+		copy.flip();
+		this.listener.handleMessage(
+			PeerMessage.PieceMessage.craft(piece, offset, copy));
+	}
+
+	@Override
+	public void onCancel(int piece, int offset, int length) {
+		this.listener.handleMessage(
+			PeerMessage.CancelMessage.craft(piece, offset, length));
+	}
+}
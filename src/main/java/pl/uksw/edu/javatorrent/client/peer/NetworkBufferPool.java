@@ -0,0 +1,234 @@
+package pl.uksw.edu.javatorrent.client.peer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded pool of direct byte buffers for the network receive paths, in
+// power-of-two size classes. When the budget would be exceeded, cached
+// buffers of other classes are dropped, then the allocation is denied.
+public class NetworkBufferPool {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(NetworkBufferPool.class);
+
+	private static final int MIN_BUFFER_SIZE_SHIFT = 6;
+	private static final int MAX_BUFFER_SIZE_SHIFT = 20;
+
+	public static final int MIN_BUFFER_SIZE = 1 << MIN_BUFFER_SIZE_SHIFT;
+	public static final int MAX_BUFFER_SIZE = 1 << MAX_BUFFER_SIZE_SHIFT;
+
+	private static final int DEFAULT_BUDGET_MB = 64;
+
+	// Number of bytes of released buffers always kept for reuse.
+	private static final long MIN_CACHED = 4*1024*1024;
+
+	private static NetworkBufferPool instance = null;
+
+	private final long budget;
+	private final ArrayDeque<ByteBuffer>[] free;
+
+	private final AtomicLong allocated;
+	private final AtomicLong used;
+	private final AtomicLong acquisitions;
+	private final AtomicLong reuses;
+	private final AtomicLong denials;
+	private final AtomicLong trims;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public NetworkBufferPool(long budget) {
+		if (budget < MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Network buffer pool budget " +
+				"must be at least " + MAX_BUFFER_SIZE + " bytes!");
+		}
+
+		this.budget = budget;
+		this.free = new ArrayDeque[
+			MAX_BUFFER_SIZE_SHIFT - MIN_BUFFER_SIZE_SHIFT + 1];
+		for (int i = 0; i < this.free.length; i++) {
+			this.free[i] = new ArrayDeque<ByteBuffer>();
+		}
+
+		this.allocated = new AtomicLong(0);
+		this.used = new AtomicLong(0);
+		this.acquisitions = new AtomicLong(0);
+		this.reuses = new AtomicLong(0);
+		this.denials = new AtomicLong(0);
+		this.trims = new AtomicLong(0);
+	}
+
+	// Budget read from TTORRENT_NETWORK_BUFFERS_MB, 64 MiB by default.
+	public static synchronized NetworkBufferPool getDefault() {
+		if (instance == null) {
+			instance = new NetworkBufferPool(getDefaultBudget());
+			logger.debug("Initialized network buffer pool with a {} " +
+				"byte(s) budget.", instance.getBudget());
+		}
+
+		return instance;
+	}
+
+	private static long getDefaultBudget() {
+		String budget = System.getenv("TTORRENT_NETWORK_BUFFERS_MB");
+
+		if (budget != null) {
+			try {
+				int mb = Integer.parseInt(budget);
+				if (mb > 0) {
+					return mb * 1024L * 1024L;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return DEFAULT_BUDGET_MB * 1024L * 1024L;
+	}
+
+	// Returns null if the pool's budget is exhausted.
+	public ByteBuffer acquire(int size) {
+		if (size < 0 || size > MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Invalid network buffer " +
+				"size " + size + "!");
+		}
+
+		this.acquisitions.incrementAndGet();
+		int index = this.sizeClass(size);
+		int capacity = 1 << (index + MIN_BUFFER_SIZE_SHIFT);
+
+		ByteBuffer buffer;
+		synchronized (this.free[index]) {
+			buffer = this.free[index].poll();
+		}
+
+		if (buffer != null) {
+			this.reuses.incrementAndGet();
+		} else {
+			if (!this.reserve(capacity, index)) {
+				this.denials.incrementAndGet();
+				return null;
+			}
+
+			buffer = ByteBuffer.allocateDirect(capacity);
+		}
+
+		this.used.addAndGet(capacity);
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		int index = this.sizeClass(buffer.capacity());
+		if (buffer.capacity() != 1 << (index + MIN_BUFFER_SIZE_SHIFT)) {
+			throw new IllegalArgumentException("Buffer does not belong " +
+				"to this pool!");
+		}
+
+		long used = this.used.addAndGet(-buffer.capacity());
+		if (this.getCached() > Math.max(MIN_CACHED, used)) {
+			this.allocated.addAndGet(-buffer.capacity());
+			this.trims.incrementAndGet();
+			return;
+		}
+
+		synchronized (this.free[index]) {
+			this.free[index].push(buffer);
+		}
+	}
+
+	// Reserves the given number of bytes in the budget, dropping cached
+	// buffers of other size classes if necessary.
+	private boolean reserve(int capacity, int index) {
+		while (true) {
+			long current = this.allocated.get();
+			if (current + capacity <= this.budget) {
+				if (this.allocated.compareAndSet(current, current + capacity)) {
+					return true;
+				}
+
+				continue;
+			}
+
+			if (!this.evict(index)) {
+				return false;
+			}
+		}
+	}
+
+	private boolean evict(int except) {
+		for (int i = this.free.length - 1; i >= 0; i--) {
+			if (i == except) {
+				continue;
+			}
+
+			ByteBuffer dropped;
+			synchronized (this.free[i]) {
+				dropped = this.free[i].poll();
+			}
+
+			if (dropped != null) {
+				this.allocated.addAndGet(-dropped.capacity());
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private int sizeClass(int size) {
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(size - 1) -
+			MIN_BUFFER_SIZE_SHIFT;
+	}
+
+	public long getBudget() {
+		return this.budget;
+	}
+
+	public long getAllocated() {
+		return this.allocated.get();
+	}
+
+	public long getUsed() {
+		return this.used.get();
+	}
+
+	public long getCached() {
+		return Math.max(0, this.allocated.get() - this.used.get());
+	}
+
+	public long getAcquisitions() {
+		return this.acquisitions.get();
+	}
+
+	public long getReuses() {
+		return this.reuses.get();
+	}
+
+	public long getDenials() {
+		return this.denials.get();
+	}
+
+	public long getTrims() {
+		return this.trims.get();
+	}
+
+	public String toString() {
+		return String.format("%d/%d/%d byte(s) used/allocated/budget, " +
+				"%d acquisition(s), %d reuse(s), %d denial(s), %d trim(s)",
+			this.getUsed(),
+			this.getAllocated(),
+			this.getBudget(),
+			this.getAcquisitions(),
+			this.getReuses(),
+			this.getDenials(),
+			this.getTrims());
+	}
+}
@@ -18,6 +18,7 @@ public interface PeerActivityListener extends EventListener {
 	public void handlePieceSent(SharingPeer peer, Piece piece);
 	public void handlePieceCompleted(SharingPeer peer, Piece piece)
 		throws IOException;
+	public void handleRequestTimeout(SharingPeer peer);
 	public void handlePeerDisconnected(SharingPeer peer);
 	public void handleIOException(SharingPeer peer, IOException ioe);
 }
@@ -0,0 +1,225 @@
+package pl.uksw.edu.javatorrent.client.peer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A selector thread multiplexing the socket channels of many peer exchanges.
+// Loops are shared by all the torrents, and each exchange is pinned to one
+// for its whole life.
+class PeerEventLoop extends Thread {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(PeerEventLoop.class);
+
+	private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+	private static PeerEventLoop[] loops = null;
+	private static int next = 0;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final PriorityQueue<Timeout> timeouts;
+
+	private PeerEventLoop(int number) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.timeouts = new PriorityQueue<Timeout>();
+
+		this.setName("bt-loop-" + number);
+		this.setDaemon(true);
+	}
+
+	// Returns the next event loop to pin a new peer exchange to.
+	static synchronized PeerEventLoop next() throws IOException {
+		if (loops == null) {
+			int threads = getEventLoopThreadsCount();
+			PeerEventLoop[] created = new PeerEventLoop[threads];
+			for (int i = 0; i < threads; i++) {
+				created[i] = new PeerEventLoop(i + 1);
+			}
+
+			for (PeerEventLoop loop : created) {
+				loop.start();
+			}
+
+			logger.debug("Started {} peer event loop(s).", threads);
+			loops = created;
+		}
+
+		PeerEventLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+
+	static int getEventLoopThreadsCount() {
+		String threads = System.getenv("TTORRENT_EVENT_LOOP_THREADS");
+
+		if (threads != null) {
+			try {
+				int count = Integer.parseInt(threads);
+				if (count > 0) {
+					return count;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	// May be called from any thread.
+	void execute(Runnable task) {
+		this.tasks.add(task);
+		if (!this.inEventLoop()) {
+			this.selector.wakeup();
+		}
+	}
+
+	Timeout schedule(Runnable task, long delayMillis) {
+		final Timeout timeout = new Timeout(task,
+			System.currentTimeMillis() + delayMillis);
+
+		if (this.inEventLoop()) {
+			this.timeouts.add(timeout);
+		} else {
+			this.execute(new Runnable() {
+				@Override
+				public void run() {
+					timeouts.add(timeout);
+				}
+			});
+		}
+
+		return timeout;
+	}
+
+	// Must be called from this loop's thread.
+	SelectionKey register(SelectableChannel channel, int ops,
+			PeerExchange exchange) throws ClosedChannelException {
+		if (!this.inEventLoop()) {
+			throw new IllegalStateException("Channels can only be " +
+				"registered from the event loop thread!");
+		}
+
+		return channel.register(this.selector, ops, exchange);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				this.selector.select(this.nextSelectTimeout());
+				this.processSelectedKeys();
+				this.runTasks();
+				this.runTimeouts();
+			} catch (IOException ioe) {
+				logger.warn("Error in peer event loop: {}", ioe.getMessage(), ioe);
+			} catch (RuntimeException re) {
+				logger.error("Unexpected error in peer event loop!", re);
+			}
+		}
+	}
+
+	private long nextSelectTimeout() {
+		if (!this.tasks.isEmpty()) {
+			return 1;
+		}
+
+		Timeout first = this.timeouts.peek();
+		if (first == null) {
+			return SELECT_TIMEOUT_MILLIS;
+		}
+
+		long delay = first.deadline - System.currentTimeMillis();
+		return Math.max(1, Math.min(delay, SELECT_TIMEOUT_MILLIS));
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+
+			PeerExchange exchange = (PeerExchange)key.attachment();
+			try {
+				if (key.isValid()) {
+					exchange.handleReady(key);
+				}
+			} catch (RuntimeException re) {
+				exchange.handleFailure(re);
+			}
+		}
+	}
+
+	private void runTasks() {
+		// Only run the tasks that were queued so far, tasks queued while
+		// running them will be run on the next iteration.
+		for (int pending = this.tasks.size(); pending > 0; pending--) {
+			Runnable task = this.tasks.poll();
+			if (task == null) {
+				break;
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException re) {
+				logger.error("Unexpected error in peer event loop task!", re);
+			}
+		}
+	}
+
+	private void runTimeouts() {
+		long now = System.currentTimeMillis();
+		while (!this.timeouts.isEmpty() &&
+				this.timeouts.peek().deadline <= now) {
+			Timeout timeout = this.timeouts.poll();
+			if (timeout.cancelled) {
+				continue;
+			}
+
+			try {
+				timeout.task.run();
+			} catch (RuntimeException re) {
+				logger.error("Unexpected error in peer event loop timer!", re);
+			}
+		}
+	}
+
+	static class Timeout implements Comparable<Timeout> {
+
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			this.cancelled = false;
+		}
+
+		void cancel() {
+			this.cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Timeout other) {
+			return this.deadline < other.deadline ? -1 :
+				(this.deadline == other.deadline ? 0 : 1);
+		}
+	}
+}
@@ -1,9 +1,9 @@
-
 package pl.uksw.edu.javatorrent.client.peer;
 
 import pl.uksw.edu.javatorrent.client.SharedTorrent;
 import pl.uksw.edu.javatorrent.common.protocol.PeerMessage;
 import pl.uksw.edu.javatorrent.common.protocol.PeerMessage.Type;
+import pl.uksw.edu.javatorrent.common.protocol.PeerMessageVisitor;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,58 +13,94 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Message exchange with a connected peer. Its channel is served by one of the
+// shared PeerEventLoops, which dispatches the received messages, decoded in
+// place in the receive buffer, from the loop's thread.
 class PeerExchange {
 
 	private static final Logger logger =
 		LoggerFactory.getLogger(PeerExchange.class);
 
 	private static final int KEEP_ALIVE_IDLE_MINUTES = 2;
-	private static final PeerMessage STOP = PeerMessage.KeepAliveMessage.craft();
+	private static final int MAX_MESSAGE_SIZE =
+		NetworkBufferPool.MAX_BUFFER_SIZE - PeerMessage.MESSAGE_LENGTH_FIELD_SIZE;
+	private static final long BUFFER_RETRY_DELAY_MILLIS = 10;
+
+	private static final int MAX_GATHERED_MESSAGES = 64;
+	private static final int MAX_GATHERED_BYTES = 256*1024;
+	private static final int COALESCING_THRESHOLD_BYTES = 4*1024;
+	private static final long COALESCING_MILLIS = getCoalescingMillis();
 
 	private SharingPeer peer;
 	private SharedTorrent torrent;
 	private SocketChannel channel;
 
-	private Set<MessageListener> listeners;
-
-	private IncomingThread in;
-	private OutgoingThread out;
-	private BlockingQueue<PeerMessage> sendQueue;
+	private final Dispatcher dispatcher;
+
+	private final PeerEventLoop loop;
+	private final NetworkBufferPool buffers;
+	private SelectionKey key;
+
+	private ByteBuffer header;
+	private ByteBuffer receiving;
+	private boolean waitingForBuffer;
+	private int readsPaused;
+
+	private final ByteBuffer[] gathered;
+	private final PeerMessage[] gatheredMessages;
+	private final long[] gatheredQueuedAt;
+	private int gatherStart;
+	private int gatherEnd;
+	private long gatheredBytes;
+	private boolean writing;
+	private boolean flushDelayed;
+	private long transferred;
+	private long lastWrite;
+
+	private final RateLimit download;
+	private final RateLimit upload;
+
+	private SendQueue sendQueue;
+	private final AtomicBoolean interestUpdatePending;
 	private volatile boolean stop;
+
 	public PeerExchange(SharingPeer peer, SharedTorrent torrent,
 			SocketChannel channel) throws SocketException {
 		this.peer = peer;
 		this.torrent = torrent;
 		this.channel = channel;
 
-		this.listeners = new HashSet<MessageListener>();
-		this.sendQueue = new LinkedBlockingQueue<PeerMessage>();
+		this.dispatcher = new Dispatcher();
+		this.sendQueue = new SendQueue();
+		this.interestUpdatePending = new AtomicBoolean(false);
 
 		if (!this.peer.hasPeerId()) {
 			throw new IllegalStateException("Peer does not have a " +
 					"peer ID. Was the handshake made properly?");
 		}
 
-		this.in = new IncomingThread();
-		this.in.setName("bt-peer(" +
-			this.peer.getShortHexPeerId() + ")-recv");
+		try {
+			this.loop = PeerEventLoop.next();
+		} catch (IOException ioe) {
+			throw new SocketException("Could not start peer event loop: " +
+				ioe.getMessage());
+		}
 
-		this.out = new OutgoingThread();
-		this.out.setName("bt-peer(" +
-			this.peer.getShortHexPeerId() + ")-send");
-		this.out.setDaemon(true);
+		this.buffers = NetworkBufferPool.getDefault();
 
+		this.gathered = new ByteBuffer[MAX_GATHERED_MESSAGES];
+		this.gatheredMessages = new PeerMessage[MAX_GATHERED_MESSAGES];
+		this.gatheredQueuedAt = new long[MAX_GATHERED_MESSAGES];
+
+		this.download = new RateLimit(this.peer.getDownloadLimit());
+		this.upload = new RateLimit(this.peer.getUploadLimit());
 		this.stop = false;
 
 		logger.debug("Started peer exchange with {} for {}.",
@@ -75,197 +111,677 @@ class PeerExchange {
 		}
 	}
 
+	public void register(PeerMessageVisitor visitor) {
+		this.dispatcher.add(visitor);
+	}
+
 	public void register(MessageListener listener) {
-		this.listeners.add(listener);
+		this.dispatcher.add(new MessageListenerAdapter(listener, this.torrent));
 	}
 
 	public boolean isConnected() {
 		return this.channel.isConnected();
 	}
+
 	public void send(PeerMessage message) {
-		try {
-			this.sendQueue.put(message);
-		} catch (InterruptedException ie) {
+		this.sendQueue.add(message, System.nanoTime());
+
+		if (this.interestUpdatePending.compareAndSet(false, true)) {
+			this.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					interestUpdatePending.set(false);
+					updateInterest();
+				}
+			});
 		}
 	}
 
+	void execute(Runnable task) {
+		this.loop.execute(task);
+	}
+
+	// Runs the given task on this exchange's event loop thread after the
+	// given delay, unless the exchange was stopped in the meantime.
+	PeerEventLoop.Timeout schedule(final Runnable task, long delayMillis) {
+		return this.loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!stop) {
+					task.run();
+				}
+			}
+		}, delayMillis);
+	}
 
 	public void start() {
-		this.in.start();
-		this.out.start();
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				register();
+			}
+		});
 	}
+
 	public void stop() {
 		this.stop = true;
 
-		try {
-			this.sendQueue.put(STOP);
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-		}
-
 		if (this.channel.isConnected()) {
 			IOUtils.closeQuietly(this.channel);
 		}
 
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				releaseReceiveBuffer();
+			}
+		});
+
 		logger.debug("Peer exchange with {} closed.", this.peer);
 	}
-	private abstract class RateLimitThread extends Thread {
 
-		protected final Rate rate = new Rate();
-		protected long sleep = 1000;
-		protected void rateLimit(double maxRate, long messageSize, PeerMessage message) {
-			if (message.getType() != Type.PIECE || maxRate <= 0) {
-				return;
-			}
+	private void register() {
+		if (this.stop) {
+			return;
+		}
 
-			try {
-				this.rate.add(messageSize);
-				if (rate.get() > (maxRate * 1024)) {
-					Thread.sleep(this.sleep);
-					this.sleep += 50;
-				} else {
-					this.sleep = this.sleep > 50
-						? this.sleep - 50
-						: 0;
-				}
-			} catch (InterruptedException e) {
-			}
+		this.header = ByteBuffer.allocate(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE);
+		this.receiving = null;
+		this.waitingForBuffer = false;
+		this.lastWrite = System.currentTimeMillis();
+
+		try {
+			this.key = this.loop.register(this.channel,
+				SelectionKey.OP_READ, this);
+		} catch (IOException ioe) {
+			this.handleIOE(ioe);
+			return;
 		}
+
+		this.updateInterest();
+		this.scheduleKeepAlive();
 	}
-	private class IncomingThread extends RateLimitThread {
-		private long read(Selector selector, ByteBuffer buffer) throws IOException {
-			if (selector.select() == 0 || !buffer.hasRemaining()) {
-				return 0;
+
+	// Handles a readiness event of the channel, on the event loop thread.
+	void handleReady(SelectionKey key) {
+		try {
+			if (key.isReadable()) {
+				this.read();
 			}
 
-			long size = 0;
-			Iterator it = selector.selectedKeys().iterator();
-			while (it.hasNext()) {
-				SelectionKey key = (SelectionKey) it.next();
-				if (key.isValid() && key.isReadable()) {
-					int read = ((SocketChannel) key.channel()).read(buffer);
-					if (read < 0) {
-						throw new IOException("Unexpected end-of-stream while reading");
-					}
-					size += read;
-				}
-				it.remove();
+			if (key.isValid() && key.isWritable()) {
+				this.write();
 			}
+		} catch (IOException ioe) {
+			this.handleIOE(ioe);
+		}
+	}
+
+	// Handles an unexpected failure while processing this exchange on the
+	// event loop thread.
+	void handleFailure(Throwable t) {
+		logger.warn("Unexpected error in exchange with {}, " +
+			"terminating exchange.", this.peer, t);
+		this.peer.unbind(true);
+	}
 
-			return size;
+	private void handleIOE(IOException ioe) {
+		logger.debug("I/O error in exchange with {}: {}",
+			this.peer,
+			ioe.getMessage() != null
+				? ioe.getMessage()
+				: ioe.getClass().getName());
+		this.peer.unbind(true);
+	}
+
+	private void updateInterest() {
+		if (this.stop || this.key == null || !this.key.isValid()) {
+			return;
 		}
 
-		private void handleIOE(IOException ioe) {
-			logger.debug("Could not read message from {}: {}",
-				peer,
-				ioe.getMessage() != null
-					? ioe.getMessage()
-					: ioe.getClass().getName());
-			peer.unbind(true);
+		int ops = 0;
+		if (!this.download.isSuspended() && !this.waitingForBuffer &&
+				this.readsPaused == 0) {
+			ops |= SelectionKey.OP_READ;
 		}
 
-		@Override
-		public void run() {
-			ByteBuffer buffer = ByteBuffer.allocateDirect(1*1024*1024);
-			Selector selector = null;
+		if (!this.upload.isSuspended() && !this.flushDelayed &&
+				(this.gatherStart < this.gatherEnd || !this.sendQueue.isEmpty())) {
+			ops |= SelectionKey.OP_WRITE;
+		}
 
-			try {
-				selector = Selector.open();
-				channel.register(selector, SelectionKey.OP_READ);
-
-				while (!stop) {
-					buffer.rewind();
-					buffer.limit(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE);
-					while (!stop && buffer.hasRemaining()) {
-						this.read(selector, buffer);
-					}
-					int pstrlen = buffer.getInt(0);
-					buffer.limit(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + pstrlen);
+		if (this.key.interestOps() != ops) {
+			this.key.interestOps(ops);
+		}
+	}
 
-					long size = 0;
-					while (!stop && buffer.hasRemaining()) {
-						size += this.read(selector, buffer);
+	// Reads messages from the channel, each into a buffer of the right size
+	// from the shared pool. Reading is paused while the pool is exhausted.
+	private void read() throws IOException {
+		while (!this.stop && !this.download.isSuspended() &&
+				!this.waitingForBuffer && this.readsPaused == 0) {
+			if (this.receiving == null) {
+				if (this.header.hasRemaining()) {
+					if (this.receive(this.header) < 0) {
+						throw new EOFException("Unexpected end-of-stream while reading");
 					}
 
-					buffer.rewind();
-					
-					if (stop) {
-						break;
-					}
-					
-					try {
-						PeerMessage message = PeerMessage.parse(buffer, torrent);
-						logger.trace("Received {} from {}", message, peer);
-						this.rateLimit(
-							PeerExchange.this.torrent.getMaxDownloadRate(),
-							size, message);
-
-						for (MessageListener listener : listeners)
-							listener.handleMessage(message);
-					} catch (ParseException pe) {
-						logger.warn("{}", pe.getMessage());
+					if (this.header.hasRemaining()) {
+						return;
 					}
 				}
-			} catch (IOException ioe) {
-				this.handleIOE(ioe);
+
+				int length = this.header.getInt(0);
+				if (length < 0 || length > MAX_MESSAGE_SIZE) {
+					throw new IOException("Invalid message length " + length);
+				}
+
+				this.receiving = this.buffers.acquire(
+					PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + length);
+				if (this.receiving == null) {
+					this.waitForBuffer();
+					return;
+				}
+
+				this.receiving.putInt(length);
+			}
+
+			if (this.receiving.hasRemaining()) {
+				if (this.receive(this.receiving) < 0) {
+					throw new EOFException("Unexpected end-of-stream while reading");
+				}
+
+				if (this.receiving.hasRemaining()) {
+					return;
+				}
+			}
+
+			this.receiving.rewind();
+			try {
+				this.dispatch(this.receiving);
 			} finally {
-				try {
-					if (selector != null) {
-						selector.close();
-					}
-				} catch (IOException ioe) {
-					this.handleIOE(ioe);
+				this.releaseReceiveBuffer();
+				this.header.clear();
+			}
+		}
+	}
+
+	// Reads from the channel as many bytes as the download limits allow.
+	private int receive(ByteBuffer buffer) throws IOException {
+		long granted = this.download.bucket.claim(buffer.remaining());
+		if (granted <= 0) {
+			this.throttle(this.download, buffer.remaining());
+			return 0;
+		}
+
+		int limit = buffer.limit();
+		int read;
+		try {
+			buffer.limit(buffer.position() + (int)granted);
+			read = this.channel.read(buffer);
+		} finally {
+			buffer.limit(limit);
+		}
+
+		this.download.bucket.refund(granted - Math.max(read, 0));
+		return read;
+	}
+
+	private void releaseReceiveBuffer() {
+		if (this.receiving != null) {
+			this.buffers.release(this.receiving);
+			this.receiving = null;
+		}
+	}
+
+	private void waitForBuffer() {
+		logger.trace("Network buffer pool exhausted, pausing reads from {}.",
+			this.peer);
+		this.waitingForBuffer = true;
+		this.updateInterest();
+
+		this.loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				waitingForBuffer = false;
+				updateInterest();
+			}
+		}, BUFFER_RETRY_DELAY_MILLIS);
+	}
+
+	// Stops reading from the peer until resumeReading() is called as many
+	// times, on the event loop thread.
+	void pauseReading() {
+		this.readsPaused++;
+		this.updateInterest();
+	}
+
+	// Resumes the reads paused by pauseReading(), from any thread.
+	void resumeReading() {
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				readsPaused--;
+				updateInterest();
+			}
+		});
+	}
+
+	private void dispatch(ByteBuffer buffer) {
+		try {
+			Type type = PeerMessage.visit(buffer, this.torrent, this.dispatcher);
+			logger.trace("Received {} from {}", type, this.peer);
+		} catch (ParseException pe) {
+			logger.warn("{}", pe.getMessage());
+		}
+	}
+
+	// Writes the queued messages to the channel with a single gathering
+	// write. A piece message streamed from its source piece ends the batch.
+	private void write() throws IOException {
+		while (!this.stop && !this.upload.isSuspended()) {
+			this.gather();
+			if (this.gatherStart == this.gatherEnd) {
+				break;
+			}
+
+			if (this.shouldCoalesce()) {
+				this.delayFlush();
+				return;
+			}
+
+			if (this.gathered[this.gatherStart].hasRemaining()) {
+				this.writing = true;
+				if (!this.flush()) {
+					return;
 				}
 			}
+
+			while (this.gatherStart < this.gatherEnd &&
+					!this.gathered[this.gatherStart].hasRemaining()) {
+				if (!this.transferBlock(this.gatheredMessages[this.gatherStart])) {
+					return;
+				}
+
+				this.complete(this.gatherStart++);
+			}
+
+			if (this.gatherStart < this.gatherEnd) {
+				// The socket's send buffer is full, wait for the channel to
+				// be writable again.
+				return;
+			}
+
+			this.gatherStart = 0;
+			this.gatherEnd = 0;
+			this.gatheredBytes = 0;
+			this.writing = false;
 		}
+
+		this.updateInterest();
 	}
-	private class OutgoingThread extends RateLimitThread {
 
-		@Override
-		public void run() {
+	// Writes as much of the current batch as the upload limits allow with a
+	// single gathering write.
+	private boolean flush() throws IOException {
+		long pending = 0;
+		for (int i = this.gatherStart; i < this.gatherEnd; i++) {
+			pending += this.gathered[i].remaining();
+		}
+
+		long granted = this.upload.bucket.claim(pending);
+		if (granted <= 0) {
+			this.throttle(this.upload, pending);
+			return false;
+		}
+
+		// Only expose the granted bytes to the channel, cutting the last
+		// buffer short if needed.
+		int end = this.gatherStart;
+		int cut = -1;
+		int cutLimit = 0;
+		for (long room = granted; end < this.gatherEnd && room > 0; end++) {
+			ByteBuffer buffer = this.gathered[end];
+			if (buffer.remaining() > room) {
+				cut = end;
+				cutLimit = buffer.limit();
+				buffer.limit(buffer.position() + (int)room);
+			}
+
+			room -= buffer.remaining();
+		}
+
+		long written;
+		try {
+			written = this.channel.write(this.gathered, this.gatherStart,
+				end - this.gatherStart);
+		} finally {
+			if (cut >= 0) {
+				this.gathered[cut].limit(cutLimit);
+			}
+		}
+
+		if (written < 0) {
+			throw new EOFException("Reached end of stream while writing");
+		}
+
+		this.upload.bucket.refund(granted - written);
+		WriteStatistics.getGlobal().recordWrite(written);
+		this.lastWrite = System.currentTimeMillis();
+		return true;
+	}
+
+	// Moves queued messages to the batch of buffers to write, unless the
+	// current batch has already started being written.
+	private void gather() {
+		if (this.writing) {
+			return;
+		}
+
+		while (this.gatherEnd < MAX_GATHERED_MESSAGES &&
+				this.gatheredBytes < MAX_GATHERED_BYTES) {
+			if (this.gatherEnd > 0 && this.isTransferred(
+					this.gatheredMessages[this.gatherEnd - 1])) {
+				break;
+			}
+
+			PeerMessage message = this.sendQueue.poll();
+			if (message == null) {
+				break;
+			}
+
+			logger.trace("Sending {} to {}", message, this.peer);
+			ByteBuffer data = message.getData();
+			this.gathered[this.gatherEnd] = data;
+			this.gatheredMessages[this.gatherEnd] = message;
+			this.gatheredQueuedAt[this.gatherEnd] = this.sendQueue.polledAt;
+			this.gatheredBytes += data.remaining();
+			this.gatherEnd++;
+		}
+	}
+
+	private boolean shouldCoalesce() {
+		if (COALESCING_MILLIS <= 0 || this.writing ||
+				this.gatheredBytes >= COALESCING_THRESHOLD_BYTES ||
+				this.isTransferred(this.gatheredMessages[this.gatherEnd - 1])) {
+			return false;
+		}
+
+		return this.coalescingDelay() > 0;
+	}
+
+	private long coalescingDelay() {
+		long waited = TimeUnit.NANOSECONDS.toMillis(
+			System.nanoTime() - this.gatheredQueuedAt[this.gatherStart]);
+		return COALESCING_MILLIS - waited;
+	}
+
+	private void delayFlush() {
+		this.flushDelayed = true;
+		this.updateInterest();
+
+		this.loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flushDelayed = false;
+				updateInterest();
+			}
+		}, this.coalescingDelay());
+	}
+
+	// Accounts for a message of the batch that has been fully written.
+	private void complete(int index) {
+		WriteStatistics.getGlobal().recordMessage(
+			System.nanoTime() - this.gatheredQueuedAt[index]);
+
+		this.gathered[index] = null;
+		this.gatheredMessages[index] = null;
+		this.transferred = 0;
+	}
+
+	private boolean isTransferred(PeerMessage message) {
+		return message.getType() == Type.PIECE &&
+			((PeerMessage.PieceMessage)message).getSource() != null;
+	}
+
+	// Streams the block of a piece message crafted from its source piece,
+	// after the message header has been written. Returns false if the
+	// channel must be writable again first.
+	private boolean transferBlock(PeerMessage sent) throws IOException {
+		if (!this.isTransferred(sent)) {
+			return true;
+		}
+
+		PeerMessage.PieceMessage message = (PeerMessage.PieceMessage)sent;
+		while (this.transferred < message.getLength()) {
+			long pending = message.getLength() - this.transferred;
+			long granted = this.upload.bucket.claim(pending);
+			if (granted <= 0) {
+				this.throttle(this.upload, pending);
+				return false;
+			}
+
+			long bytes = message.getSource().transferTo(
+				message.getOffset() + this.transferred, granted, this.channel);
+			this.upload.bucket.refund(granted - bytes);
+			if (bytes <= 0) {
+				return false;
+			}
+
+			WriteStatistics.getGlobal().recordWrite(bytes);
+			this.transferred += bytes;
+			this.lastWrite = System.currentTimeMillis();
+		}
+
+		return true;
+	}
+
+	private void throttle(RateLimit limit, long bytes) {
+		this.suspend(limit, Math.max(1, limit.bucket.getDelayMillis(bytes)));
+	}
+
+	private void suspend(final RateLimit limit, long delay) {
+		limit.suspended = true;
+		this.updateInterest();
+
+		this.loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				limit.suspended = false;
+				updateInterest();
+			}
+		}, delay);
+	}
+
+	private void scheduleKeepAlive() {
+		final long idle = TimeUnit.MINUTES.toMillis(KEEP_ALIVE_IDLE_MINUTES);
+		this.loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (stop) {
+					return;
+				}
+
+				if (gatherStart == gatherEnd && sendQueue.isEmpty() &&
+						System.currentTimeMillis() - lastWrite >= idle) {
+					send(PeerMessage.KeepAliveMessage.craft());
+				}
+
+				scheduleKeepAlive();
+			}
+		}, Math.max(1, idle - (System.currentTimeMillis() - this.lastWrite)));
+	}
+
+	private static long getCoalescingMillis() {
+		String millis = System.getenv("TTORRENT_WRITE_COALESCING_MS");
+
+		if (millis != null) {
 			try {
-				while (!stop || (stop && sendQueue.size() > 0)) {
-					try {
-						PeerMessage message = sendQueue.poll(
-								PeerExchange.KEEP_ALIVE_IDLE_MINUTES,
-								TimeUnit.MINUTES);
-
-						if (message == STOP) {
-							return;
-						}
-
-						if (message == null) {
-							message = PeerMessage.KeepAliveMessage.craft();
-						}
-
-						logger.trace("Sending {} to {}", message, peer);
-
-						ByteBuffer data = message.getData();
-						long size = 0;
-						while (!stop && data.hasRemaining()) {
-						    int written = channel.write(data);
-						    size += written;
-							if (written < 0) {
-								throw new EOFException(
-									"Reached end of stream while writing");
-							}
-						}
-
-
-						this.rateLimit(PeerExchange.this.torrent.getMaxUploadRate(),
-							size, message);
-					} catch (InterruptedException ie) {
+				long delay = Long.parseLong(millis);
+				if (delay > 0) {
+					return delay;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
 
-					}
+		return 0;
+	}
+
+	// Queue of the messages waiting to be sent, along with the time at which
+	// each of them was queued. Only polled from the event loop thread.
+	private static class SendQueue {
+
+		private PeerMessage[] messages = new PeerMessage[16];
+		private long[] queuedAt = new long[16];
+		private int head = 0;
+		private int size = 0;
+
+		// Queuing time of the last polled message.
+		private long polledAt = 0;
+
+		private synchronized void add(PeerMessage message, long now) {
+			if (this.size == this.messages.length) {
+				PeerMessage[] messages = new PeerMessage[this.size * 2];
+				long[] queuedAt = new long[this.size * 2];
+				for (int i = 0; i < this.size; i++) {
+					int index = (this.head + i) % this.size;
+					messages[i] = this.messages[index];
+					queuedAt[i] = this.queuedAt[index];
 				}
-			} catch (IOException ioe) {
-				logger.debug("Could not send message to {}: {}",
-					peer,
-					ioe.getMessage() != null
-						? ioe.getMessage()
-						: ioe.getClass().getName());
-				peer.unbind(true);
+
+				this.messages = messages;
+				this.queuedAt = queuedAt;
+				this.head = 0;
 			}
+
+			int tail = (this.head + this.size) % this.messages.length;
+			this.messages[tail] = message;
+			this.queuedAt[tail] = now;
+			this.size++;
+		}
+
+		private synchronized PeerMessage poll() {
+			if (this.size == 0) {
+				return null;
+			}
+
+			PeerMessage message = this.messages[this.head];
+			this.polledAt = this.queuedAt[this.head];
+			this.messages[this.head] = null;
+			this.head = (this.head + 1) % this.messages.length;
+			this.size--;
+			return message;
+		}
+
+		private synchronized boolean isEmpty() {
+			return this.size == 0;
+		}
+	}
+
+	// Hands the decoded messages to all the registered visitors.
+	private static class Dispatcher implements PeerMessageVisitor {
+
+		private volatile PeerMessageVisitor[] visitors =
+			new PeerMessageVisitor[0];
+
+		private synchronized void add(PeerMessageVisitor visitor) {
+			PeerMessageVisitor[] visitors = Arrays.copyOf(this.visitors,
+				this.visitors.length + 1);
+			visitors[visitors.length - 1] = visitor;
+			this.visitors = visitors;
+		}
+
+		@Override
+		public void onKeepAlive() {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onKeepAlive();
+			}
+		}
+
+		@Override
+		public void onChoke() {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onChoke();
+			}
+		}
+
+		@Override
+		public void onUnchoke() {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onUnchoke();
+			}
+		}
+
+		@Override
+		public void onInterested() {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onInterested();
+			}
+		}
+
+		@Override
+		public void onNotInterested() {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onNotInterested();
+			}
+		}
+
+		@Override
+		public void onHave(int piece) {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onHave(piece);
+			}
+		}
+
+		@Override
+		public void onBitfield(ByteBuffer bitfield) {
+			int position = bitfield.position();
+			for (PeerMessageVisitor visitor : this.visitors) {
+				bitfield.position(position);
+				visitor.onBitfield(bitfield);
+			}
+		}
+
+		@Override
+		public void onRequest(int piece, int offset, int length) {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onRequest(piece, offset, length);
+			}
+		}
+
+		@Override
+		public void onPiece(int piece, int offset, ByteBuffer block) {
+			int position = block.position();
+			for (PeerMessageVisitor visitor : this.visitors) {
+				block.position(position);
+				visitor.onPiece(piece, offset, block);
+			}
+		}
+
+		@Override
+		public void onCancel(int piece, int offset, int length) {
+			for (PeerMessageVisitor visitor : this.visitors) {
+				visitor.onCancel(piece, offset, length);
+			}
+		}
+	}
+
+	// Rate limiting state of one direction of the exchange. Instead of
+	// sleeping, an exchange out of tokens stops selecting the matching
+	// readiness event until tokens are available again.
+	private static class RateLimit {
+
+		private final TokenBucket bucket;
+		private boolean suspended = false;
+
+		private RateLimit(TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+
+		private boolean isSuspended() {
+			return this.suspended;
 		}
 	}
 }
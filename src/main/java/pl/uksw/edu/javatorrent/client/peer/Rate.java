@@ -1,37 +1,88 @@
-
 package pl.uksw.edu.javatorrent.client.peer;
 
 import java.io.Serializable;
 import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+// A lock-free sliding window transfer rate estimator. Each slot of the ring
+// packs its time slot number with its byte count, so that adding bytes, and
+// recycling a stale slot, is a single compare-and-set.
 public class Rate implements Comparable<Rate> {
 
 	public static final Comparator<Rate> RATE_COMPARATOR =
 		new RateComparator();
 
-	private long bytes = 0;
-	private long reset = 0;
-	private long last = 0;
-	public synchronized void add(long count) {
-		this.bytes += count;
-		if (this.reset == 0) {
-			this.reset = System.currentTimeMillis();
+	// Duration of a time slot, in milliseconds.
+	public static final long SLOT_MILLIS = 250;
+
+	public static final long HORIZON_SHORT = 1000;
+	public static final long HORIZON_MEDIUM = 10*1000;
+	public static final long HORIZON_LONG = 60*1000;
+
+	private static final int SLOTS = 256;
+
+	private static final int BYTES_BITS = 40;
+	private static final long BYTES_MASK = (1L << BYTES_BITS) - 1;
+	private static final long EPOCH_MASK = (1L << (64 - BYTES_BITS)) - 1;
+
+	private final AtomicLongArray slots;
+	private volatile long start;
+
+	public Rate() {
+		this.slots = new AtomicLongArray(SLOTS);
+		this.start = System.currentTimeMillis();
+	}
+
+	public void add(long count) {
+		long epoch = System.currentTimeMillis() / SLOT_MILLIS;
+		int index = (int)(epoch % SLOTS);
+		long tag = (epoch & EPOCH_MASK) << BYTES_BITS;
+
+		while (true) {
+			long current = this.slots.get(index);
+			long updated = (current & ~BYTES_MASK) == tag
+				? current + count
+				: tag | (count & BYTES_MASK);
+			if (this.slots.compareAndSet(index, current, updated)) {
+				return;
+			}
 		}
-		this.last = System.currentTimeMillis();
 	}
 
-	public synchronized float get() {
-		if (this.last - this.reset == 0) {
+	public float get() {
+		return this.get(HORIZON_MEDIUM);
+	}
+
+	// Returns the rate over the given horizon, in bytes per second.
+	public float get(long horizon) {
+		long now = System.currentTimeMillis();
+		long epoch = now / SLOT_MILLIS;
+		int count = (int)Math.min(SLOTS - 1,
+			Math.max(1, (horizon + SLOT_MILLIS - 1) / SLOT_MILLIS));
+
+		long bytes = 0;
+		for (int i = 0; i < count; i++) {
+			long slot = this.slots.get((int)((epoch - i) % SLOTS));
+			if ((slot >>> BYTES_BITS) == ((epoch - i) & EPOCH_MASK)) {
+				bytes += slot & BYTES_MASK;
+			}
+		}
+
+		long elapsed = Math.min((count - 1) * SLOT_MILLIS +
+			(now - epoch * SLOT_MILLIS), now - this.start);
+		if (elapsed <= 0) {
 			return 0;
 		}
 
-		return this.bytes / ((this.last - this.reset) / 1000.0f);
+		return bytes / (elapsed / 1000.0f);
 	}
 
-	public synchronized void reset() {
-		this.bytes = 0;
-		this.reset = System.currentTimeMillis();
-		this.last = this.reset;
+	public void reset() {
+		for (int i = 0; i < SLOTS; i++) {
+			this.slots.set(i, 0);
+		}
+
+		this.start = System.currentTimeMillis();
 	}
 
 	@Override
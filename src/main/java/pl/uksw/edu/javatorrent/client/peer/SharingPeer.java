@@ -1,10 +1,13 @@
 
 package pl.uksw.edu.javatorrent.client.peer;
 
+import pl.uksw.edu.javatorrent.client.DiskIOExecutor;
 import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.PieceCache;
 import pl.uksw.edu.javatorrent.client.SharedTorrent;
 import pl.uksw.edu.javatorrent.common.Peer;
 import pl.uksw.edu.javatorrent.common.protocol.PeerMessage;
+import pl.uksw.edu.javatorrent.common.protocol.PeerMessageVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,20 +17,48 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class SharingPeer extends Peer implements MessageListener {
+public class SharingPeer extends Peer
+	implements MessageListener, PeerMessageVisitor {
 
 	private static final Logger logger =
 		LoggerFactory.getLogger(SharingPeer.class);
 
-	private static final int MAX_PIPELINED_REQUESTS = 5;
+	// Bounds of the number of block requests kept in flight.
+	private static final int MIN_PIPELINED_REQUESTS = 5;
+	private static final int MAX_PIPELINED_REQUESTS = 128;
 
-	private boolean choking;
+	// Factor applied to the bandwidth-delay product to get the pipeline
+	// depth, leaving room for the download rate to keep growing.
+	private static final int PIPELINE_HEADROOM = 2;
+
+	// Maximum number of peers a block is requested from at the same time in
+	// end-game mode.
+	public static final int END_GAME_MAX_REQUESTS = 3;
+
+	// How long to wait for a requested block before giving its request up.
+	private static final long REQUEST_TIMEOUT_MILLIS = 20*1000;
+
+	// Number of request timeouts in a row after which a peer is snubbed.
+	private static final int SNUB_TIMEOUTS = 2;
+
+	// How long a minimum round-trip time sample is trusted for.
+	private static final long MIN_RTT_WINDOW_NANOS =
+		TimeUnit.SECONDS.toNanos(10);
+
+	private volatile boolean choking;
 	private boolean interesting;
 
 	private boolean choked;
@@ -36,15 +67,28 @@ public class SharingPeer extends Peer implements MessageListener {
 	private SharedTorrent torrent;
 	private BitSet availablePieces;
 
-	private Piece requestedPiece;
-	private int lastRequestedOffset;
-
-	private BlockingQueue<PeerMessage.RequestMessage> requests;
+	private Map<Integer, ActivePiece> activePieces;
+	private Map<Long, PeerMessage.RequestMessage> requests;
+	private Map<Long, Long> requestDeadlines;
+	private Set<Long> timedOutBlocks;
 	private volatile boolean downloading;
 
+	private PeerMessage.RequestMessage timedRequest;
+	private long timedRequestSent;
+	private long minRtt;
+	private long minRttSampled;
+	private volatile long srtt;
+
+	private int timeouts;
+	private volatile boolean snubbed;
+	private PeerEventLoop.Timeout requestTimeout;
+
 	private PeerExchange exchange;
-	private Rate download;
-	private Rate upload;
+	private final Rate download;
+	private final Rate upload;
+
+	private final TokenBucket downloadLimit;
+	private final TokenBucket uploadLimit;
 
 	private Set<PeerActivityListener> listeners;
 
@@ -57,11 +101,22 @@ public class SharingPeer extends Peer implements MessageListener {
 		this.listeners = new HashSet<PeerActivityListener>();
 		this.availablePieces = new BitSet(this.torrent.getPieceCount());
 
+		this.download = new Rate();
+		this.upload = new Rate();
+
+		this.downloadLimit = new TokenBucket(this.torrent.getDownloadLimit());
+		this.uploadLimit = new TokenBucket(this.torrent.getUploadLimit());
+
 		this.requestsLock = new Object();
 		this.exchangeLock = new Object();
 
+		this.activePieces = new LinkedHashMap<Integer, ActivePiece>();
+		this.requests = new LinkedHashMap<Long, PeerMessage.RequestMessage>();
+		this.requestDeadlines = new LinkedHashMap<Long, Long>();
+		this.timedOutBlocks = Collections.newSetFromMap(
+			new ConcurrentHashMap<Long, Boolean>());
+
 		this.reset();
-		this.requestedPiece = null;
 	}
 	public void register(PeerActivityListener listener) {
 		this.listeners.add(listener);
@@ -74,6 +129,24 @@ public class SharingPeer extends Peer implements MessageListener {
 	public Rate getULRate() {
 		return this.upload;
 	}
+
+	// In KB/s; the torrent's and the process-wide limits still apply.
+	public void setMaxDownloadRate(double rate) {
+		this.downloadLimit.setRate(rate);
+	}
+
+	// In KB/s; the torrent's and the process-wide limits still apply.
+	public void setMaxUploadRate(double rate) {
+		this.uploadLimit.setRate(rate);
+	}
+
+	TokenBucket getDownloadLimit() {
+		return this.downloadLimit;
+	}
+
+	TokenBucket getUploadLimit() {
+		return this.uploadLimit;
+	}
 	public synchronized void reset() {
 		this.choking = true;
 		this.interesting = false;
@@ -82,22 +155,28 @@ public class SharingPeer extends Peer implements MessageListener {
 
 		this.exchange = null;
 
-		this.requests = null;
-		this.lastRequestedOffset = 0;
-		this.downloading = false;
+		this.releaseRequests(false);
+
+		this.minRtt = 0;
+		this.srtt = 0;
+
+		synchronized (this.requestsLock) {
+			this.timeouts = 0;
+			this.snubbed = false;
+		}
 	}
 	public void choke() {
 		if (!this.choking) {
 			logger.trace("Choking {}", this);
-			this.send(PeerMessage.ChokeMessage.craft());
 			this.choking = true;
+			this.send(PeerMessage.ChokeMessage.craft());
 		}
 	}
 	public void unchoke() {
 		if (this.choking) {
 			logger.trace("Unchoking {}", this);
-			this.send(PeerMessage.UnchokeMessage.craft());
 			this.choking = false;
+			this.send(PeerMessage.UnchokeMessage.craft());
 		}
 	}
 
@@ -140,8 +219,15 @@ public class SharingPeer extends Peer implements MessageListener {
 		}
 	}
 
-	public Piece getRequestedPiece() {
-		return this.requestedPiece;
+	public Set<Piece> getRequestedPieces() {
+		synchronized (this.requestsLock) {
+			Set<Piece> pieces = new LinkedHashSet<Piece>();
+			for (ActivePiece active : this.activePieces.values()) {
+				pieces.add(active.piece);
+			}
+
+			return pieces;
+		}
 	}
 	public synchronized boolean isSeed() {
 		return this.torrent.getPieceCount() > 0 &&
@@ -153,13 +239,10 @@ public class SharingPeer extends Peer implements MessageListener {
 		this.unbind(true);
 
 		this.exchange = new PeerExchange(this, this.torrent, channel);
-		this.exchange.register(this);
+		this.exchange.register((PeerMessageVisitor)this);
 		this.exchange.start();
 
-		this.download = new Rate();
 		this.download.reset();
-
-		this.upload = new Rate();
 		this.upload.reset();
 	}
 
@@ -183,7 +266,7 @@ public class SharingPeer extends Peer implements MessageListener {
 		}
 
 		this.firePeerDisconnected();
-		this.requestedPiece = null;
+		this.releaseRequests(false);
 	}
 
 	public void send(PeerMessage message) throws IllegalStateException {
@@ -194,20 +277,17 @@ public class SharingPeer extends Peer implements MessageListener {
 		}
 	}
 
-	public synchronized void downloadPiece(Piece piece)
-		throws IllegalStateException {
-		if (this.isDownloading()) {
-			IllegalStateException up = new IllegalStateException(
-					"Trying to download a piece while previous " +
-					"download not completed!");
-			logger.warn("What's going on? {}", up.getMessage(), up);
-			throw up; // ah ah.
+	// Only blocks not received or requested from another peer yet are
+	// requested, so several peers can download the same piece.
+	public synchronized void downloadPiece(Piece piece) {
+		synchronized (this.requestsLock) {
+			if (this.activePieces.containsKey(piece.getIndex())) {
+				return;
+			}
+
+			this.activePieces.put(piece.getIndex(), new ActivePiece(piece));
 		}
 
-		this.requests = new LinkedBlockingQueue<PeerMessage.RequestMessage>(
-				SharingPeer.MAX_PIPELINED_REQUESTS);
-		this.requestedPiece = piece;
-		this.lastRequestedOffset = 0;
 		this.requestNextBlocks();
 	}
 
@@ -215,62 +295,386 @@ public class SharingPeer extends Peer implements MessageListener {
 		return this.downloading;
 	}
 
+	// Snubbed peers left our requests unanswered without choking us. They are
+	// only requested one block at a time until they send one again.
+	public boolean isSnubbed() {
+		return this.snubbed;
+	}
+
+	// Requests more blocks from this peer if it is unchoking us, it has
+	// pieces we want and nothing is currently requested from it. Runs on the
+	// peer's event loop, so it can be called holding other peers' locks.
+	public void resumeDownload() {
+		PeerExchange exchange;
+		synchronized (this.exchangeLock) {
+			exchange = this.exchange;
+		}
+
+		if (exchange == null) {
+			return;
+		}
+
+		exchange.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SharingPeer.this) {
+					if (!choked && interesting && !downloading) {
+						fillPipeline();
+					}
+				}
+			}
+		});
+	}
+
+	// Fills the request pipeline, asking the listeners for more pieces to
+	// download from this peer while all the blocks of the active pieces have
+	// already been requested.
+	private void fillPipeline() {
+		this.requestNextBlocks();
+
+		for (int i = 0; i < MAX_PIPELINED_REQUESTS && this.needsPieces(); i++) {
+			int active;
+			synchronized (this.requestsLock) {
+				active = this.activePieces.size();
+			}
+
+			this.firePeerReady();
+
+			synchronized (this.requestsLock) {
+				if (this.activePieces.size() == active) {
+					break;
+				}
+			}
+		}
+	}
+
+	private boolean needsPieces() {
+		synchronized (this.requestsLock) {
+			if (this.requests.size() >= this.getPipelineDepth()) {
+				return false;
+			}
+
+			for (ActivePiece active : this.activePieces.values()) {
+				if (active.piece.hasClaimableBlocks(this,
+						this.getMaxRequestsPerBlock(active.piece))) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
 	private void requestNextBlocks() {
 		synchronized (this.requestsLock) {
-			if (this.requests == null || this.requestedPiece == null) {
+			int depth = this.getPipelineDepth();
+			Iterator<ActivePiece> it = this.activePieces.values().iterator();
+			while (it.hasNext()) {
+				ActivePiece active = it.next();
+				int maxRequests = this.getMaxRequestsPerBlock(active.piece);
+				while (this.requests.size() < depth) {
+					int offset = active.piece.claimBlock(this, maxRequests);
+					if (offset < 0) {
+						break;
+					}
+
+					PeerMessage.RequestMessage request = PeerMessage.RequestMessage
+						.craft(active.piece.getIndex(), offset,
+							active.piece.getBlockLength(offset));
+					long key = blockKey(request.getPiece(), request.getOffset());
+					this.requests.put(key, request);
+					this.requestDeadlines.put(key, System.nanoTime() +
+						TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS));
+					this.send(request);
+					active.pending++;
+
+					if (this.timedRequest == null) {
+						this.timedRequest = request;
+						this.timedRequestSent = System.nanoTime();
+					}
+				}
+
+				// Other peers are taking care of the remaining blocks of
+				// this piece, if any.
+				if (active.pending == 0 &&
+						!active.piece.hasClaimableBlocks(this, maxRequests)) {
+					it.remove();
+				}
+			}
+
+			this.downloading = this.requests.size() > 0;
+			if (this.downloading && this.requestTimeout == null) {
+				this.scheduleRequestTimeout(REQUEST_TIMEOUT_MILLIS);
+			}
+		}
+	}
+
+	private void scheduleRequestTimeout(long delay) {
+		PeerExchange exchange;
+		synchronized (this.exchangeLock) {
+			exchange = this.exchange;
+		}
+
+		if (exchange != null) {
+			this.requestTimeout = exchange.schedule(new Runnable() {
+				@Override
+				public void run() {
+					checkRequestTimeout();
+				}
+			}, delay);
+		}
+	}
+
+	// Gives up the requests to this peer that weren't answered within
+	// REQUEST_TIMEOUT_MILLIS. Requests are kept in the order they were sent
+	// in, so only the oldest ones need to be looked at.
+	private void checkRequestTimeout() {
+		int expired = 0;
+		synchronized (this.requestsLock) {
+			this.requestTimeout = null;
+
+			long now = System.nanoTime();
+			Iterator<Map.Entry<Long, Long>> it =
+				this.requestDeadlines.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, Long> deadline = it.next();
+				if (deadline.getValue() - now > 0) {
+					this.scheduleRequestTimeout(Math.max(1,
+						TimeUnit.NANOSECONDS.toMillis(deadline.getValue() - now)));
+					break;
+				}
+
+				it.remove();
+				PeerMessage.RequestMessage request =
+					this.requests.remove(deadline.getKey());
+				this.send(PeerMessage.CancelMessage.craft(request.getPiece(),
+					request.getOffset(), request.getLength()));
+				// The block goes to other peers: it is only requested from
+				// this one again once it answers requests again.
+				this.timedOutBlocks.add(deadline.getKey());
+				this.torrent.getPiece(request.getPiece())
+					.releaseBlock(this, request.getOffset());
+
+				ActivePiece active = this.activePieces.get(request.getPiece());
+				if (active != null) {
+					active.pending--;
+				}
+
+				if (request == this.timedRequest) {
+					this.timedRequest = null;
+				}
+
+				expired++;
+			}
+
+			if (expired == 0) {
 				return;
 			}
 
-			while (this.requests.remainingCapacity() > 0 &&
-					this.lastRequestedOffset < this.requestedPiece.size()) {
-				PeerMessage.RequestMessage request = PeerMessage.RequestMessage
-					.craft(
-						this.requestedPiece.getIndex(),
-						this.lastRequestedOffset,
-						Math.min(
-							(int)(this.requestedPiece.size() -
-								this.lastRequestedOffset),
-							PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE));
-				this.requests.add(request);
-				this.send(request);
-				this.lastRequestedOffset += request.getLength();
+			this.timeouts++;
+			this.downloading = this.requests.size() > 0;
+			logger.debug("{} request(s) to {} timed out, {} left ({} in a row).",
+				new Object[] {
+					expired,
+					this,
+					this.requests.size(),
+					this.timeouts
+				});
+
+			if (this.timeouts >= SNUB_TIMEOUTS && !this.snubbed) {
+				logger.info("Peer {} is snubbing us.", this);
+				this.snubbed = true;
+			}
+		}
+
+		this.fireRequestTimeout();
+	}
+
+	// The block's claim on its piece is not released: the caller does it once
+	// done with the block.
+	private boolean removeBlockRequest(int piece, int offset) {
+		synchronized (this.requestsLock) {
+			long key = blockKey(piece, offset);
+			PeerMessage.RequestMessage request = this.requests.remove(key);
+			if (request != null) {
+				this.requestDeadlines.remove(key);
+				ActivePiece active = this.activePieces.get(piece);
+				if (active != null) {
+					active.pending--;
+				}
+
+				if (request == this.timedRequest) {
+					this.sampleRoundTripTime(
+						System.nanoTime() - this.timedRequestSent);
+				}
+
+				this.timeouts = 0;
+				this.timedOutBlocks.clear();
+				if (this.snubbed) {
+					logger.debug("Peer {} is no longer snubbing us.", this);
+					this.snubbed = false;
+				}
 			}
 
 			this.downloading = this.requests.size() > 0;
+			return request != null;
 		}
 	}
-	private void removeBlockRequest(PeerMessage.PieceMessage message) {
+
+	// Stops downloading the given piece from this peer, cancelling its
+	// outstanding block requests.
+	private void deactivate(Piece piece) {
 		synchronized (this.requestsLock) {
-			if (this.requests == null) {
+			if (this.activePieces.remove(piece.getIndex()) == null) {
 				return;
 			}
 
-			for (PeerMessage.RequestMessage request : this.requests) {
-				if (request.getPiece() == message.getPiece() &&
-						request.getOffset() == message.getOffset()) {
-					this.requests.remove(request);
-					break;
+			Iterator<Map.Entry<Long, PeerMessage.RequestMessage>> it =
+				this.requests.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Long, PeerMessage.RequestMessage> entry = it.next();
+				PeerMessage.RequestMessage request = entry.getValue();
+				if (request.getPiece() == piece.getIndex()) {
+					this.requestDeadlines.remove(entry.getKey());
+					this.send(PeerMessage.CancelMessage.craft(request.getPiece(),
+						request.getOffset(), request.getLength()));
+					piece.releaseBlock(this, request.getOffset());
+					if (request == this.timedRequest) {
+						this.timedRequest = null;
+					}
+					it.remove();
 				}
 			}
 
 			this.downloading = this.requests.size() > 0;
 		}
 	}
-	public Set<PeerMessage.RequestMessage> cancelPendingRequests() {
-		synchronized (this.requestsLock) {
-			Set<PeerMessage.RequestMessage> requests =
-				new HashSet<PeerMessage.RequestMessage>();
 
-			if (this.requests != null) {
-				for (PeerMessage.RequestMessage request : this.requests) {
+	// Drops all the outstanding requests and active pieces of this peer,
+	// giving their blocks back so that other peers can request them.
+	private void releaseRequests(boolean cancel) {
+		synchronized (this.requestsLock) {
+			for (PeerMessage.RequestMessage request : this.requests.values()) {
+				if (cancel) {
 					this.send(PeerMessage.CancelMessage.craft(request.getPiece(),
-								request.getOffset(), request.getLength()));
-					requests.add(request);
+						request.getOffset(), request.getLength()));
 				}
+
+				this.torrent.getPiece(request.getPiece())
+					.releaseBlock(this, request.getOffset());
 			}
 
-			this.requests = null;
+			this.activePieces.clear();
+			this.requests.clear();
+			this.requestDeadlines.clear();
+			this.timedOutBlocks.clear();
 			this.downloading = false;
+			this.timedRequest = null;
+
+			if (this.requestTimeout != null) {
+				this.requestTimeout.cancel();
+				this.requestTimeout = null;
+			}
+		}
+	}
+
+	// Cancels the request of the given block, if it was requested from this
+	// peer, because another peer sent it first.
+	private void cancelBlock(int piece, int offset) {
+		synchronized (this.requestsLock) {
+			long key = blockKey(piece, offset);
+			PeerMessage.RequestMessage request = this.requests.remove(key);
+			if (request == null) {
+				return;
+			}
+
+			this.requestDeadlines.remove(key);
+			logger.trace("Cancelling duplicate request {} to {}.",
+				request, this);
+			this.send(PeerMessage.CancelMessage.craft(piece, offset,
+				request.getLength()));
+			this.torrent.getPiece(piece).releaseBlock(this, offset);
+
+			ActivePiece active = this.activePieces.get(piece);
+			if (active != null) {
+				active.pending--;
+			}
+
+			if (request == this.timedRequest) {
+				this.timedRequest = null;
+			}
+
+			this.downloading = this.requests.size() > 0;
+		}
+	}
+
+	// Returns the maximum number of peers a block of the given piece may be
+	// requested from at the same time: one, unless the torrent is in end-game
+	// mode or the piece is late.
+	private int getMaxRequestsPerBlock(Piece piece) {
+		return this.torrent.isEndGame() || piece.isLate()
+			? END_GAME_MAX_REQUESTS
+			: 1;
+	}
+
+	// Whether a request of the block timed out since this peer last
+	// answered one.
+	public boolean hasTimedOut(int piece, int offset) {
+		return this.timedOutBlocks.contains(blockKey(piece, offset));
+	}
+
+	private static long blockKey(int piece, int offset) {
+		return ((long)piece << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	// The bandwidth-delay product of the link, with some headroom. The
+	// minimum round-trip time is used, as the smoothed one includes the time
+	// blocks spend queued at the peer, which grows with the depth itself.
+	public int getPipelineDepth() {
+		long rtt;
+		synchronized (this.requestsLock) {
+			if (this.timeouts > 0) {
+				return 1;
+			}
+
+			rtt = this.minRtt;
+		}
+
+		if (rtt <= 0) {
+			return MIN_PIPELINED_REQUESTS;
+		}
+
+		double bdp = this.download.get(Rate.HORIZON_SHORT) *
+			rtt / TimeUnit.SECONDS.toNanos(1);
+		long depth = (long)Math.ceil(PIPELINE_HEADROOM * bdp /
+			PeerMessage.RequestMessage.DEFAULT_REQUEST_SIZE);
+		return (int)Math.max(MIN_PIPELINED_REQUESTS,
+			Math.min(MAX_PIPELINED_REQUESTS, depth));
+	}
+
+	public long getRoundTripTime() {
+		return TimeUnit.NANOSECONDS.toMillis(this.srtt);
+	}
+
+	private void sampleRoundTripTime(long rtt) {
+		long now = System.nanoTime();
+		if (this.minRtt <= 0 || rtt <= this.minRtt ||
+				now - this.minRttSampled > MIN_RTT_WINDOW_NANOS) {
+			this.minRtt = rtt;
+			this.minRttSampled = now;
+		}
+
+		this.srtt = this.srtt <= 0 ? rtt : this.srtt + (rtt - this.srtt) / 8;
+		this.timedRequest = null;
+	}
+
+	public Set<PeerMessage.RequestMessage> cancelPendingRequests() {
+		synchronized (this.requestsLock) {
+			Set<PeerMessage.RequestMessage> requests =
+				new HashSet<PeerMessage.RequestMessage>();
+
+			requests.addAll(this.requests.values());
+			this.releaseRequests(true);
 			return requests;
 		}
 	}
@@ -278,127 +682,356 @@ public class SharingPeer extends Peer implements MessageListener {
 	public synchronized void handleMessage(PeerMessage msg) {
 		switch (msg.getType()) {
 			case KEEP_ALIVE:
+				this.onKeepAlive();
 				break;
 			case CHOKE:
-				this.choked = true;
-				this.firePeerChoked();
-				this.cancelPendingRequests();
+				this.onChoke();
 				break;
 			case UNCHOKE:
-				this.choked = false;
-				logger.trace("Peer {} is now accepting requests.", this);
-				this.firePeerReady();
+				this.onUnchoke();
 				break;
 			case INTERESTED:
-				this.interested = true;
+				this.onInterested();
 				break;
 			case NOT_INTERESTED:
-				this.interested = false;
+				this.onNotInterested();
 				break;
 			case HAVE:
-				PeerMessage.HaveMessage have = (PeerMessage.HaveMessage)msg;
-				Piece havePiece = this.torrent.getPiece(have.getPieceIndex());
-
-				synchronized (this.availablePieces) {
-					this.availablePieces.set(havePiece.getIndex());
-					logger.trace("Peer {} now has {} [{}/{}].",
-						new Object[] {
-							this,
-							havePiece,
-							this.availablePieces.cardinality(),
-							this.torrent.getPieceCount()
-						});
-				}
-
-				this.firePieceAvailabity(havePiece);
+				this.onHave(((PeerMessage.HaveMessage)msg).getPieceIndex());
 				break;
 			case BITFIELD:
-				PeerMessage.BitfieldMessage bitfield =
-					(PeerMessage.BitfieldMessage)msg;
-
-				synchronized (this.availablePieces) {
-					this.availablePieces.or(bitfield.getBitfield());
-					logger.trace("Recorded bitfield from {} with {} " +
-						"pieces(s) [{}/{}].",
-						new Object[] {
-							this,
-							bitfield.getBitfield().cardinality(),
-							this.availablePieces.cardinality(),
-							this.torrent.getPieceCount()
-						});
-				}
-
-				this.fireBitfieldAvailabity();
+				this.recordBitfield(((PeerMessage.BitfieldMessage)msg)
+					.getBitfield());
 				break;
 			case REQUEST:
 				PeerMessage.RequestMessage request =
 					(PeerMessage.RequestMessage)msg;
-				Piece rp = this.torrent.getPiece(request.getPiece());
-				if (this.isChoking() || !rp.isValid()) {
-					logger.warn("Peer {} violated protocol, " +
-						"terminating exchange.", this);
-					this.unbind(true);
-					break;
+				this.onRequest(request.getPiece(), request.getOffset(),
+					request.getLength());
+				break;
+			case PIECE:
+				PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage)msg;
+				ByteBuffer block = piece.getBlock().duplicate();
+				block.rewind();
+				this.onPiece(piece.getPiece(), piece.getOffset(), block);
+				break;
+			case CANCEL:
+				PeerMessage.CancelMessage cancel = (PeerMessage.CancelMessage)msg;
+				this.onCancel(cancel.getPiece(), cancel.getOffset(),
+					cancel.getLength());
+				break;
+		}
+	}
+
+	@Override
+	public void onKeepAlive() {
+	}
+
+	@Override
+	public synchronized void onChoke() {
+		this.choked = true;
+		this.firePeerChoked();
+		this.cancelPendingRequests();
+	}
+
+	@Override
+	public synchronized void onUnchoke() {
+		this.choked = false;
+		logger.trace("Peer {} is now accepting requests.", this);
+		this.fillPipeline();
+	}
+
+	@Override
+	public synchronized void onInterested() {
+		this.interested = true;
+	}
+
+	@Override
+	public synchronized void onNotInterested() {
+		this.interested = false;
+	}
+
+	@Override
+	public synchronized void onHave(int piece) {
+		Piece havePiece = this.torrent.getPiece(piece);
+
+		synchronized (this.availablePieces) {
+			this.availablePieces.set(havePiece.getIndex());
+			if (logger.isTraceEnabled()) {
+				logger.trace("Peer {} now has {} [{}/{}].",
+					new Object[] {
+						this,
+						havePiece,
+						this.availablePieces.cardinality(),
+						this.torrent.getPieceCount()
+					});
+			}
+		}
+
+		this.firePieceAvailabity(havePiece);
+	}
+
+	@Override
+	public synchronized void onBitfield(ByteBuffer bitfield) {
+		BitSet pieces = new BitSet(this.torrent.getPieceCount());
+		for (int i = 0; i < bitfield.remaining() * 8; i++) {
+			if ((bitfield.get(bitfield.position() + i/8) &
+					(1 << (7 - (i % 8)))) != 0) {
+				pieces.set(i);
+			}
+		}
+
+		this.recordBitfield(pieces);
+	}
+
+	private void recordBitfield(BitSet bitfield) {
+		synchronized (this.availablePieces) {
+			this.availablePieces.or(bitfield);
+			logger.trace("Recorded bitfield from {} with {} " +
+				"pieces(s) [{}/{}].",
+				new Object[] {
+					this,
+					bitfield.cardinality(),
+					this.availablePieces.cardinality(),
+					this.torrent.getPieceCount()
+				});
+		}
+
+		this.fireBitfieldAvailabity();
+	}
+
+	@Override
+	public synchronized void onRequest(int piece, int offset, int length) {
+		Piece rp = this.torrent.getPiece(piece);
+		if (this.isChoking() || !rp.isValid()) {
+			logger.warn("Peer {} violated protocol, " +
+				"terminating exchange.", this);
+			this.unbind(true);
+			return;
+		}
+
+		if (length > PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
+			logger.warn("Peer {} requested a block too big, " +
+				"terminating exchange.", this);
+			this.unbind(true);
+			return;
+		}
+
+		// The rest of the piece is likely to be requested next. Until it is
+		// cached, the block is streamed from the piece's storage straight to
+		// the socket when the message is sent.
+		PieceCache.getGlobal().countRequest(rp);
+		PieceCache.getGlobal().readAhead(this.torrent, rp);
+		if (DiskIOExecutor.getGlobal().isAsynchronous()) {
+			this.sendBlock(rp, offset, length);
+			this.holdBackReads(false);
+		} else {
+			this.send(PeerMessage.PieceMessage.craft(rp, offset, length));
+		}
+
+		this.upload.add(length);
+		this.torrent.getUploadRate().add(length);
+
+		if (offset + length == rp.size()) {
+			this.firePieceSent(rp);
+		}
+	}
+
+	@Override
+	public synchronized void onPiece(int piece, final int offset,
+			ByteBuffer block) {
+		final Piece p = this.torrent.getPiece(piece);
+		int length = block.remaining();
+		final boolean requested = this.removeBlockRequest(piece, offset);
+		this.download.add(length);
+		this.torrent.getDownloadRate().add(length);
+
+		final ByteBuffer data;
+		if (DiskIOExecutor.getGlobal().isAsynchronous()) {
+			// The block is in a network buffer reused once this returns.
+			data = ByteBuffer.allocate(length);
+			data.put(block);
+			data.flip();
+		} else {
+			data = block;
+		}
+
+		DiskIOExecutor.getGlobal().submit(this.torrent,
+			new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					return recordBlock(p, offset, data, requested);
+				}
+			},
+			new DiskIOExecutor.Callback<Boolean>() {
+				@Override
+				public void onCompletion(Boolean complete) {
+					if (complete) {
+						validatePiece(p);
+					}
 				}
 
-				if (request.getLength() >
-						PeerMessage.RequestMessage.MAX_REQUEST_SIZE) {
-					logger.warn("Peer {} requested a block too big, " +
-						"terminating exchange.", this);
-					this.unbind(true);
-					break;
+				@Override
+				public void onFailure(IOException ioe) {
+					fireIOException(new IOException(
+						"Error while storing received piece block!", ioe));
 				}
-				try {
-					ByteBuffer block = rp.read(request.getOffset(),
-									request.getLength());
-					this.send(PeerMessage.PieceMessage.craft(request.getPiece(),
-								request.getOffset(), block));
-					this.upload.add(block.capacity());
-
-					if (request.getOffset() + request.getLength() == rp.size()) {
-						this.firePieceSent(rp);
+			});
+
+		this.holdBackReads(true);
+		this.fillPipeline();
+	}
+
+	// Stops reading from this peer while too many disk jobs are queued, or
+	// the torrent's write-back cache is full, until they caught up, so that
+	// messages aren't received faster than the disk can keep up with.
+	private void holdBackReads(boolean written) {
+		final PeerExchange exchange;
+		synchronized (this.exchangeLock) {
+			exchange = this.exchange;
+		}
+
+		if (exchange == null) {
+			return;
+		}
+
+		Runnable resume = new Runnable() {
+			@Override
+			public void run() {
+				exchange.resumeReading();
+			}
+		};
+
+		if (DiskIOExecutor.getGlobal().whenDrained(resume)) {
+			logger.trace("Disk queue full, pausing reads from {}.", this);
+			exchange.pauseReading();
+		}
+
+		if (written && this.torrent.whenWritable(resume)) {
+			logger.trace("Write-back cache full, pausing reads from {}.", this);
+			exchange.pauseReading();
+		}
+	}
+
+	// Records a block received from this peer, as a disk job. Returns true if
+	// it completed its piece, which must now be validated.
+	private boolean recordBlock(Piece p, int offset, ByteBuffer block,
+			boolean requested) throws IOException {
+		boolean discard = false;
+		boolean complete = false;
+		List<SharingPeer> duplicates;
+		synchronized (p) {
+			try {
+				if (p.isValid()) {
+					discard = true;
+				} else {
+					complete = p.record(block, offset);
+				}
+			} finally {
+				// Only give the block back once it has been recorded,
+				// so that no other peer requests it in the meantime.
+				if (requested) {
+					p.releaseBlock(this, offset);
+				}
+
+				duplicates = p.getRequesters(offset);
+			}
+		}
+
+		// The block may also have been requested from other peers in
+		// end-game mode: cancel these requests now that it is here.
+		for (SharingPeer other : duplicates) {
+			other.cancelBlock(p.getIndex(), offset);
+		}
+
+		if (discard) {
+			logger.debug("Discarding block for already completed " + p);
+			this.deactivate(p);
+		} else if (complete) {
+			this.deactivate(p);
+		}
+
+		return complete;
+	}
+
+	// Validates a piece completed by a block from this peer, as a disk job,
+	// and reports it once validated.
+	private void validatePiece(final Piece p) {
+		DiskIOExecutor.getGlobal().submit(this.torrent,
+			new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					return p.validate();
+				}
+			},
+			new DiskIOExecutor.Callback<Boolean>() {
+				@Override
+				public void onCompletion(Boolean valid) {
+					try {
+						firePieceCompleted(p);
+					} catch (IOException ioe) {
+						fireIOException(new IOException(
+							"Error while storing received piece block!", ioe));
+						return;
 					}
-				} catch (IOException ioe) {
-					this.fireIOException(new IOException(
-							"Error while sending piece block request!", ioe));
+
+					// Requests may have run dry while the piece was being
+					// validated, and invalid pieces have to be requested
+					// again.
+					resumeDownload();
 				}
 
-				break;
-			case PIECE:
-				PeerMessage.PieceMessage piece = (PeerMessage.PieceMessage)msg;
-				Piece p = this.torrent.getPiece(piece.getPiece());
-				this.removeBlockRequest(piece);
-				this.download.add(piece.getBlock().capacity());
-
-				try {
-					synchronized (p) {
-						if (p.isValid()) {
-							this.requestedPiece = null;
-							this.cancelPendingRequests();
-							this.firePeerReady();
-							logger.debug("Discarding block for already completed " + p);
-							break;
-						}
-
-						p.record(piece.getBlock(), piece.getOffset());
-						if (piece.getOffset() + piece.getBlock().capacity()
-								== p.size()) {
-							p.validate();
-							this.firePieceCompleted(p);
-							this.requestedPiece = null;
-							this.firePeerReady();
-						} else {
-							this.requestNextBlocks();
-						}
+				@Override
+				public void onFailure(IOException ioe) {
+					fireIOException(new IOException(
+						"Error while validating received piece!", ioe));
+				}
+			});
+	}
+
+	// Brings a block requested by this peer into memory, as a disk job, and
+	// sends it once there, so that the event loop doesn't wait for the disk
+	// while transferring it.
+	private void sendBlock(final Piece p, final int offset, final int length) {
+		DiskIOExecutor.getGlobal().submit(this.torrent,
+			new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					p.warm(offset, length);
+					return null;
+				}
+			},
+			new DiskIOExecutor.Callback<Void>() {
+				@Override
+				public void onCompletion(Void result) {
+					if (isConnected()) {
+						send(PeerMessage.PieceMessage.craft(p, offset, length));
 					}
-				} catch (IOException ioe) {
-					this.fireIOException(new IOException(
-							"Error while storing received piece block!", ioe));
-					break;
 				}
-				break;
-			case CANCEL:
-				break;
+
+				@Override
+				public void onFailure(IOException ioe) {
+					fireIOException(new IOException(
+						"Error while reading piece block to upload!", ioe));
+				}
+			});
+	}
+
+	@Override
+	public void onCancel(int piece, int offset, int length) {
+	}
+
+	// Download state of a piece being downloaded from this peer.
+	private static class ActivePiece {
+
+		private final Piece piece;
+
+		// Number of blocks of the piece requested from this peer.
+		private int pending;
+
+		private ActivePiece(Piece piece) {
+			this.piece = piece;
+			this.pending = 0;
 		}
 	}
 
@@ -408,6 +1041,12 @@ public class SharingPeer extends Peer implements MessageListener {
 		}
 	}
 
+	private void fireRequestTimeout() {
+		for (PeerActivityListener listener : this.listeners) {
+			listener.handleRequestTimeout(this);
+		}
+	}
+
 	private void firePeerReady() {
 		for (PeerActivityListener listener : this.listeners) {
 			listener.handlePeerReady(this);
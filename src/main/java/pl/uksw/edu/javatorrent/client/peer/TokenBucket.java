@@ -0,0 +1,167 @@
+package pl.uksw.edu.javatorrent.client.peer;
+
+import java.util.concurrent.TimeUnit;
+
+// A token bucket bandwidth limiter, in KB/s, 0 or less meaning unlimited.
+// Buckets form a process, torrent, peer hierarchy: bytes only go through when
+// all the ancestors grant them too. Claims never block.
+public class TokenBucket {
+
+	// Maximum number of bytes granted by a claim on a limited bucket.
+	public static final int MAX_GRANT = 16*1024;
+
+	// Burst allowed by a bucket, as a duration at its rate.
+	private static final long BURST_MILLIS = 100;
+
+	private static final TokenBucket globalUpload =
+		new TokenBucket(null, getGlobalRate("TTORRENT_MAX_UPLOAD_RATE"));
+	private static final TokenBucket globalDownload =
+		new TokenBucket(null, getGlobalRate("TTORRENT_MAX_DOWNLOAD_RATE"));
+
+	private final TokenBucket parent;
+
+	private double rate;
+	private double capacity;
+	private double tokens;
+	private long refilled;
+
+	public TokenBucket(TokenBucket parent) {
+		this(parent, 0);
+	}
+
+	public TokenBucket(TokenBucket parent, double rate) {
+		this.parent = parent;
+		this.refilled = System.nanoTime();
+		this.setRate(rate);
+	}
+
+	// Rate initially read from TTORRENT_MAX_UPLOAD_RATE.
+	public static TokenBucket getGlobalUpload() {
+		return globalUpload;
+	}
+
+	// Rate initially read from TTORRENT_MAX_DOWNLOAD_RATE.
+	public static TokenBucket getGlobalDownload() {
+		return globalDownload;
+	}
+
+	private static double getGlobalRate(String variable) {
+		String rate = System.getenv(variable);
+
+		if (rate != null) {
+			try {
+				return Double.parseDouble(rate);
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return 0;
+	}
+
+	public synchronized double getRate() {
+		return this.rate > 0 ? this.rate / 1024 : 0;
+	}
+
+	public synchronized void setRate(double rate) {
+		this.refill(System.nanoTime());
+		this.rate = rate > 0 ? rate * 1024 : 0;
+		this.capacity = Math.max(MAX_GRANT,
+			this.rate * BURST_MILLIS / 1000.0);
+		this.tokens = Math.min(this.tokens, this.capacity);
+	}
+
+	// Tells whether this bucket or one of its ancestors has a limited rate.
+	public boolean isLimited() {
+		synchronized (this) {
+			if (this.rate > 0) {
+				return true;
+			}
+		}
+
+		return this.parent != null && this.parent.isLimited();
+	}
+
+	public long claim(long bytes) {
+		return this.claim(bytes, System.nanoTime());
+	}
+
+	private synchronized long claim(long bytes, long now) {
+		long granted = bytes;
+		if (this.rate > 0) {
+			this.refill(now);
+			granted = Math.min(granted,
+				Math.min(MAX_GRANT, (long)this.tokens));
+		}
+
+		if (granted > 0 && this.parent != null) {
+			granted = this.parent.claim(granted, now);
+		}
+
+		if (this.rate > 0) {
+			this.tokens -= granted;
+		}
+
+		return granted;
+	}
+
+	// Gives back granted bytes that ended up not being transferred.
+	public void refund(long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+
+		synchronized (this) {
+			if (this.rate > 0) {
+				this.tokens = Math.min(this.capacity, this.tokens + bytes);
+			}
+		}
+
+		if (this.parent != null) {
+			this.parent.refund(bytes);
+		}
+	}
+
+	// Returns how long to wait, in milliseconds, before some of the given
+	// number of bytes can be granted by this bucket and all its ancestors.
+	public long getDelayMillis(long bytes) {
+		long delay = 0;
+
+		synchronized (this) {
+			if (this.rate > 0) {
+				this.refill(System.nanoTime());
+				double wanted = Math.min(bytes, this.capacity / 4);
+				if (this.tokens < wanted) {
+					delay = (long)Math.ceil(
+						(wanted - this.tokens) * 1000.0 / this.rate);
+				}
+			}
+		}
+
+		if (this.parent != null) {
+			delay = Math.max(delay, this.parent.getDelayMillis(bytes));
+		}
+
+		return delay;
+	}
+
+	private void refill(long now) {
+		if (now <= this.refilled) {
+			return;
+		}
+
+		if (this.rate > 0) {
+			this.tokens = Math.min(this.capacity, this.tokens +
+				this.rate * (now - this.refilled) / TimeUnit.SECONDS.toNanos(1));
+		}
+
+		this.refilled = now;
+	}
+
+	public String toString() {
+		double rate = this.getRate();
+		return rate > 0
+			? String.format("%.2f KB/s", rate)
+			: "unlimited";
+	}
+}
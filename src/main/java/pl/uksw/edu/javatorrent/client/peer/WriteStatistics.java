@@ -0,0 +1,92 @@
+package pl.uksw.edu.javatorrent.client.peer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Statistics of the outgoing path of the peer exchanges.
+public class WriteStatistics {
+
+	private static final WriteStatistics global = new WriteStatistics();
+
+	private final LongAdder calls;
+	private final LongAdder bytes;
+	private final LongAdder messages;
+	private final LongAdder latency;
+	private final AtomicLong maxLatency;
+
+	public WriteStatistics() {
+		this.calls = new LongAdder();
+		this.bytes = new LongAdder();
+		this.messages = new LongAdder();
+		this.latency = new LongAdder();
+		this.maxLatency = new AtomicLong(0);
+	}
+
+	public static WriteStatistics getGlobal() {
+		return global;
+	}
+
+	void recordWrite(long bytes) {
+		this.calls.increment();
+		this.bytes.add(bytes);
+	}
+
+	void recordMessage(long latencyNanos) {
+		this.messages.increment();
+		this.latency.add(latencyNanos);
+
+		long max = this.maxLatency.get();
+		while (latencyNanos > max &&
+				!this.maxLatency.compareAndSet(max, latencyNanos)) {
+			max = this.maxLatency.get();
+		}
+	}
+
+	public long getWriteCalls() {
+		return this.calls.sum();
+	}
+
+	public long getBytesWritten() {
+		return this.bytes.sum();
+	}
+
+	public long getMessagesWritten() {
+		return this.messages.sum();
+	}
+
+	public double getWriteCallsPerMiB() {
+		long bytes = this.getBytesWritten();
+		if (bytes == 0) {
+			return 0;
+		}
+
+		return this.getWriteCalls() / (bytes / (1024.0 * 1024.0));
+	}
+
+	// Time between a message being queued and it being fully written.
+	public double getAverageLatencyMillis() {
+		long messages = this.getMessagesWritten();
+		if (messages == 0) {
+			return 0;
+		}
+
+		return this.latency.sum() / (double)messages /
+			TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public double getMaxLatencyMillis() {
+		return this.maxLatency.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public String toString() {
+		return String.format("%d message(s), %d byte(s) in %d write(s) " +
+				"(%.1f write(s)/MiB), latency %.2f/%.2f ms avg/max",
+			this.getMessagesWritten(),
+			this.getBytesWritten(),
+			this.getWriteCalls(),
+			this.getWriteCallsPerMiB(),
+			this.getAverageLatencyMillis(),
+			this.getMaxLatencyMillis());
+	}
+}
@@ -6,20 +6,29 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 public class FileCollectionStorage implements TorrentByteStorage {
 
 	private static final Logger logger =
 		LoggerFactory.getLogger(FileCollectionStorage.class);
 
-	private final List<FileStorage> files;
+	private final FileStorage[] files;
 	private final long size;
+
+	// End offset of each file, in the order of the files.
+	private final long[] ends;
+
 	public FileCollectionStorage(List<FileStorage> files,
 		long size) {
-		this.files = files;
+		this.files = files.toArray(new FileStorage[files.size()]);
 		this.size = size;
 
+		this.ends = new long[this.files.length];
+		for (int i = 0; i < this.files.length; i++) {
+			this.ends[i] = this.files[i].offset() + this.files[i].size();
+		}
+
 		logger.info("Initialized torrent byte storage on {} file(s) " +
 			"({} total byte(s)).", files.size(), size);
 	}
@@ -34,11 +43,16 @@ public class FileCollectionStorage implements TorrentByteStorage {
 		int requested = buffer.remaining();
 		int bytes = 0;
 
-		for (FileOffset fo : this.select(offset, requested)) {
+		for (int i = this.select(offset, requested);
+				bytes < requested && i < this.files.length; i++) {
+			long position = Math.max(0, offset + bytes - this.files[i].offset());
+			long length = Math.min(this.files[i].size() - position,
+				requested - bytes);
+
 			// TODO: remove cast to int when large ByteBuffer support is
 			// implemented in Java.
-			buffer.limit((int)(bytes + fo.length));
-			bytes += fo.file.read(buffer, fo.offset);
+			buffer.limit((int)(bytes + length));
+			bytes += this.files[i].read(buffer, position);
 		}
 
 		if (bytes < requested) {
@@ -51,12 +65,16 @@ public class FileCollectionStorage implements TorrentByteStorage {
 	@Override
 	public int write(ByteBuffer buffer, long offset) throws IOException {
 		int requested = buffer.remaining();
-
 		int bytes = 0;
 
-		for (FileOffset fo : this.select(offset, requested)) {
-			buffer.limit(bytes + (int)fo.length);
-			bytes += fo.file.write(buffer, fo.offset);
+		for (int i = this.select(offset, requested);
+				bytes < requested && i < this.files.length; i++) {
+			long position = Math.max(0, offset + bytes - this.files[i].offset());
+			long length = Math.min(this.files[i].size() - position,
+				requested - bytes);
+
+			buffer.limit(bytes + (int)length);
+			bytes += this.files[i].write(buffer, position);
 		}
 
 		if (bytes < requested) {
@@ -66,6 +84,37 @@ public class FileCollectionStorage implements TorrentByteStorage {
 		return bytes;
 	}
 
+	@Override
+	public long transferTo(long offset, long length, WritableByteChannel target)
+		throws IOException {
+		long bytes = 0;
+
+		for (int i = this.select(offset, length);
+				bytes < length && i < this.files.length; i++) {
+			long position = Math.max(0, offset + bytes - this.files[i].offset());
+			long size = Math.min(this.files[i].size() - position,
+				length - bytes);
+
+			long transferred = this.files[i].transferTo(position, size, target);
+			bytes += transferred;
+
+			if (transferred < size) {
+				// The target can't take more for now, the rest will be
+				// transferred by a subsequent call.
+				break;
+			}
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (FileStorage file : this.files) {
+			file.flush();
+		}
+	}
+
 	@Override
 	public void close() throws IOException {
 		for (FileStorage file : this.files) {
@@ -90,50 +139,32 @@ public class FileCollectionStorage implements TorrentByteStorage {
 
 		return true;
 	}
-	private static class FileOffset {
 
-		public final FileStorage file;
-		public final long offset;
-		public final long length;
-
-		FileOffset(FileStorage file, long offset, long length) {
-			this.file = file;
-			this.offset = offset;
-			this.length = length;
-		}
-	};
-	private List<FileOffset> select(long offset, long length) {
+	// Returns the index of the file holding the first byte of the given
+	// range, found by a binary search of the files' end offsets.
+	private int select(long offset, long length) {
 		if (offset + length > this.size) {
 			throw new IllegalArgumentException("Buffer overrun (" +
 				offset + " + " + length + " > " + this.size + ") !");
 		}
 
-		List<FileOffset> selected = new LinkedList<FileOffset>();
-		long bytes = 0;
-
-		for (FileStorage file : this.files) {
-			if (file.offset() >= offset + length) {
-				break;
+		// First file ending after the offset.
+		int low = 0;
+		int high = this.ends.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.ends[middle] > offset) {
+				high = middle;
+			} else {
+				low = middle + 1;
 			}
-
-			if (file.offset() + file.size() < offset) {
-				continue;
-			}
-
-			long position = offset - file.offset();
-			position = position > 0 ? position : 0;
-			long size = Math.min(
-				file.size() - position,
-				length - bytes);
-			selected.add(new FileOffset(file, position, size));
-			bytes += size;
 		}
 
-		if (selected.size() == 0 || bytes < length) {
-			throw new IllegalStateException("Buffer underrun (only got " +
-				bytes + " out of " + length + " byte(s) requested)!");
+		if (low == this.ends.length && length > 0) {
+			throw new IllegalStateException("Buffer underrun (only got 0 " +
+				"out of " + length + " byte(s) requested)!");
 		}
 
-		return selected;
+		return low;
 	}
 }
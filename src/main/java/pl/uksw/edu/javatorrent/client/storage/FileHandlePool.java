@@ -0,0 +1,311 @@
+package pl.uksw.edu.javatorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A bounded pool of the files opened by the file storages, TTORRENT_OPEN_FILES
+// at most. Files that weren't used lately are closed, once done with, and
+// re-opened by their storage when used again.
+public class FileHandlePool {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(FileHandlePool.class);
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	// How long files are kept open when they aren't used.
+	private static final long IDLE_TIMEOUT_MILLIS = 60*1000;
+
+	private static final FileHandlePool global =
+		new FileHandlePool(getGlobalCapacity());
+
+	private final int capacity;
+
+	// Open files, in the order they are looked at for eviction.
+	private final Deque<Handle> clock;
+	private int open;
+	private Thread closer;
+
+	private long opened;
+	private long evictions;
+	private long expirations;
+
+	public FileHandlePool(int capacity) {
+		this.capacity = capacity;
+		this.clock = new ArrayDeque<Handle>();
+		this.open = 0;
+
+		this.opened = 0;
+		this.evictions = 0;
+		this.expirations = 0;
+	}
+
+	public static FileHandlePool getGlobal() {
+		return global;
+	}
+
+	// Adds a file just opened by the given storage to this pool, closing
+	// files that weren't used lately if needed.
+	Handle add(FileStorage storage, File path, RandomAccessFile file) {
+		Handle handle = new Handle(storage, path, file);
+		List<Handle> evicted = new ArrayList<Handle>();
+
+		synchronized (this) {
+			this.clock.add(handle);
+			this.open++;
+			this.opened++;
+
+			while (this.open > this.capacity) {
+				Handle victim = this.victim();
+				logger.trace("Closing least recently used file {}.",
+					victim.path.getName());
+				this.evictions++;
+				evicted.add(victim);
+			}
+
+			if (this.closer == null) {
+				this.closer = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						closeIdle();
+					}
+				}, "bt-file-closer");
+				this.closer.setDaemon(true);
+				this.closer.start();
+			}
+		}
+
+		for (Handle victim : evicted) {
+			victim.evict();
+		}
+
+		return handle;
+	}
+
+	// Closes the given file, once it isn't used anymore.
+	void remove(Handle handle) {
+		synchronized (this) {
+			if (handle.removed) {
+				return;
+			}
+
+			handle.removed = true;
+			this.open--;
+		}
+
+		handle.evict();
+	}
+
+	// Picks the file to close next, among the files that weren't used since
+	// they were last looked at, and takes it out of this pool.
+	private Handle victim() {
+		for (int i = 0, scans = 2 * this.clock.size(); i < scans; i++) {
+			Handle handle = this.clock.poll();
+			if (handle.removed) {
+				continue;
+			}
+
+			if (handle.referenced || handle.users.get() > 0) {
+				handle.referenced = false;
+				this.clock.add(handle);
+				continue;
+			}
+
+			handle.removed = true;
+			this.open--;
+			return handle;
+		}
+
+		Handle handle = this.clock.poll();
+		while (handle.removed) {
+			handle = this.clock.poll();
+		}
+
+		handle.removed = true;
+		this.open--;
+		return handle;
+	}
+
+	// Closes the files that weren't used for IDLE_TIMEOUT_MILLIS.
+	private void closeIdle() {
+		while (true) {
+			try {
+				Thread.sleep(IDLE_TIMEOUT_MILLIS / 2);
+			} catch (InterruptedException ie) {
+				logger.debug("File closer interrupted.");
+				return;
+			}
+
+			long deadline = System.nanoTime() -
+				TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+			List<Handle> idle = new ArrayList<Handle>();
+
+			synchronized (this) {
+				for (int i = this.clock.size(); i > 0; i--) {
+					Handle handle = this.clock.poll();
+					if (handle.removed) {
+						continue;
+					}
+
+					if (handle.users.get() == 0 &&
+							handle.lastUsed - deadline < 0) {
+						handle.removed = true;
+						this.open--;
+						this.expirations++;
+						idle.add(handle);
+					} else {
+						this.clock.add(handle);
+					}
+				}
+			}
+
+			for (Handle handle : idle) {
+				logger.trace("Closing idle file {}.", handle.path.getName());
+				handle.evict();
+			}
+		}
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public synchronized int getOpenFiles() {
+		return this.open;
+	}
+
+	public synchronized long getOpened() {
+		return this.opened;
+	}
+
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	public synchronized long getExpirations() {
+		return this.expirations;
+	}
+
+	public String toString() {
+		return String.format("%d/%d file(s) open, %d opened, %d eviction(s), " +
+				"%d idle closed",
+			this.getOpenFiles(),
+			this.getCapacity(),
+			this.getOpened(),
+			this.getEvictions(),
+			this.getExpirations());
+	}
+
+	private static int getGlobalCapacity() {
+		String files = System.getenv("TTORRENT_OPEN_FILES");
+
+		if (files != null) {
+			try {
+				int count = Integer.parseInt(files);
+				if (count > 0) {
+					return count;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return DEFAULT_CAPACITY;
+	}
+
+	// An open file of the pool.
+	static class Handle {
+
+		private final FileStorage storage;
+		private final File path;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final AtomicInteger users;
+
+		private volatile boolean evicted;
+		private volatile boolean referenced;
+		private volatile long lastUsed;
+
+		// Guarded by the pool's lock.
+		private boolean removed;
+
+		private Handle(FileStorage storage, File path, RandomAccessFile file) {
+			this.storage = storage;
+			this.path = path;
+			this.file = file;
+			this.channel = file.getChannel();
+			this.users = new AtomicInteger(1);
+			this.evicted = false;
+			this.referenced = true;
+			this.lastUsed = System.nanoTime();
+			this.removed = false;
+		}
+
+		FileChannel getChannel() {
+			return this.channel;
+		}
+
+		// Returns false if the file was evicted, and must be opened again.
+		boolean acquire() {
+			while (true) {
+				int users = this.users.get();
+				if (users < 0 || this.evicted) {
+					return false;
+				}
+
+				if (this.users.compareAndSet(users, users + 1)) {
+					break;
+				}
+			}
+
+			if (this.evicted) {
+				this.release();
+				return false;
+			}
+
+			this.referenced = true;
+			this.lastUsed = System.nanoTime();
+			return true;
+		}
+
+		void release() {
+			this.lastUsed = System.nanoTime();
+			if (this.users.decrementAndGet() == 0 && this.evicted) {
+				this.close();
+			}
+		}
+
+		private void evict() {
+			this.evicted = true;
+			if (this.users.get() == 0) {
+				this.close();
+			}
+		}
+
+		private void close() {
+			if (!this.users.compareAndSet(0, -1)) {
+				return;
+			}
+
+			try {
+				this.file.close();
+			} catch (IOException ioe) {
+				logger.warn("Error closing {}: {}", this.path.getName(),
+					ioe.getMessage());
+			}
+
+			this.storage.closed(this);
+		}
+	}
+}
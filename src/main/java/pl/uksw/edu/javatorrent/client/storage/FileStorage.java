@@ -9,7 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class FileStorage implements TorrentByteStorage {
 
@@ -21,9 +21,9 @@ public class FileStorage implements TorrentByteStorage {
 	private final long offset;
 	private final long size;
 
-	private RandomAccessFile raf;
-	private FileChannel channel;
 	private File current;
+	private boolean opened;
+	private volatile FileHandlePool.Handle handle;
 
 	public FileStorage(File file, long size) throws IOException {
 		this(file, 0, size);
@@ -51,21 +51,62 @@ public class FileStorage implements TorrentByteStorage {
 				this.target.getAbsolutePath());
 			this.current = this.target;
 		}
+	}
+
+	// Returns the handle to the file, opening it if it isn't open, which must
+	// be handed back with release(FileHandlePool.Handle) once done with.
+	protected FileHandlePool.Handle acquire() throws IOException {
+		FileHandlePool.Handle handle = this.handle;
+		if (handle != null && handle.acquire()) {
+			return handle;
+		}
+
+		synchronized (this) {
+			handle = this.handle;
+			if (handle == null || !handle.acquire()) {
+				handle = FileHandlePool.getGlobal()
+					.add(this, this.current, this.open());
+				this.handle = handle;
+			}
+
+			return handle;
+		}
+	}
+
+	protected void release(FileHandlePool.Handle handle) {
+		handle.release();
+	}
 
-		this.raf = new RandomAccessFile(this.current, "rw");
+	protected void closed(FileHandlePool.Handle handle) {
+	}
+
+	private RandomAccessFile open() throws IOException {
+		this.current.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(this.current, "rw");
 
-		if (file.length() != this.size) {
-			this.raf.setLength(this.size);
+		if (this.target.length() != this.size) {
+			raf.setLength(this.size);
+		}
+
+		if (this.opened) {
+			logger.trace("Re-opened byte storage file at {}.",
+				this.current.getAbsolutePath());
+		} else {
+			logger.info("Initialized byte storage file at {} " +
+				"({}+{} byte(s)).",
+				new Object[] {
+					this.current.getAbsolutePath(),
+					this.offset,
+					this.size,
+				});
+			this.opened = true;
 		}
 
-		this.channel = raf.getChannel();
-		logger.info("Initialized byte storage file at {} " +
-			"({}+{} byte(s)).",
-			new Object[] {
-				this.current.getAbsolutePath(),
-				this.offset,
-				this.size,
-			});
+		return raf;
+	}
+
+	public synchronized File getFile() {
+		return this.current;
 	}
 
 	protected long offset() {
@@ -85,12 +126,17 @@ public class FileStorage implements TorrentByteStorage {
 			throw new IllegalArgumentException("Invalid storage read request!");
 		}
 
-		int bytes = this.channel.read(buffer, offset);
-		if (bytes < requested) {
-			throw new IOException("Storage underrun!");
-		}
+		FileHandlePool.Handle handle = this.acquire();
+		try {
+			int bytes = handle.getChannel().read(buffer, offset);
+			if (bytes < requested) {
+				throw new IOException("Storage underrun!");
+			}
 
-		return bytes;
+			return bytes;
+		} finally {
+			this.release(handle);
+		}
 	}
 
 	@Override
@@ -101,23 +147,62 @@ public class FileStorage implements TorrentByteStorage {
 			throw new IllegalArgumentException("Invalid storage write request!");
 		}
 
-		return this.channel.write(buffer, offset);
+		FileHandlePool.Handle handle = this.acquire();
+		try {
+			return handle.getChannel().write(buffer, offset);
+		} finally {
+			this.release(handle);
+		}
+	}
+
+	@Override
+	public long transferTo(long offset, long length, WritableByteChannel target)
+		throws IOException {
+		if (offset + length > this.size) {
+			throw new IllegalArgumentException("Invalid storage transfer request!");
+		}
+
+		FileHandlePool.Handle handle = this.acquire();
+		try {
+			return handle.getChannel().transferTo(offset, length, target);
+		} finally {
+			this.release(handle);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Nothing is buffered, writes go straight to the file channel.
 	}
 
 	@Override
 	public synchronized void close() throws IOException {
+		FileHandlePool.Handle handle = this.handle;
+		if (handle == null || !handle.acquire()) {
+			return;
+		}
+
 		logger.debug("Closing file channel to " + this.current.getName() + "...");
-		if (this.channel.isOpen()) {
-			this.channel.force(true);
+		try {
+			handle.getChannel().force(true);
+		} finally {
+			this.release(handle);
+			this.handle = null;
+			FileHandlePool.getGlobal().remove(handle);
 		}
-		this.raf.close();
 	}
+
 	@Override
 	public synchronized void finish() throws IOException {
+		// Files never written to, like empty files, are created now.
+		FileHandlePool.Handle handle = this.acquire();
+
 		logger.debug("Closing file channel to " + this.current.getName() +
 			" (download complete).");
-		if (this.channel.isOpen()) {
-			this.channel.force(true);
+		try {
+			handle.getChannel().force(true);
+		} finally {
+			this.release(handle);
 		}
 
 		// Nothing more to do if we're already on the target file.
@@ -125,16 +210,13 @@ public class FileStorage implements TorrentByteStorage {
 			return;
 		}
 
-		this.raf.close();
+		// The partial file is closed once the reads and writes still using
+		// it are done, the file is re-opened on the target when next used.
+		this.handle = null;
+		FileHandlePool.getGlobal().remove(handle);
 		FileUtils.deleteQuietly(this.target);
 		FileUtils.moveFile(this.current, this.target);
 
-		logger.debug("Re-opening torrent byte storage at {}.",
-				this.target.getAbsolutePath());
-
-		this.raf = new RandomAccessFile(this.target, "rw");
-		this.raf.setLength(this.size);
-		this.channel = this.raf.getChannel();
 		this.current = this.target;
 
 		FileUtils.deleteQuietly(this.partial);
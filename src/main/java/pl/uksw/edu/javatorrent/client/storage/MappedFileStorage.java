@@ -0,0 +1,279 @@
+package pl.uksw.edu.javatorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// A file storage reading and writing through memory mappings of the file, in
+// windows bounded process-wide by TTORRENT_MMAP_WINDOWS. Dropped windows are
+// only unmapped once garbage collected.
+public class MappedFileStorage extends FileStorage {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(MappedFileStorage.class);
+
+	public static final int DEFAULT_WINDOW_SIZE = 64*1024*1024;
+	private static final int DEFAULT_MAX_WINDOWS = 64;
+
+	private static final int maxWindows = getMaxWindows();
+
+	// Mapped windows of all the files, in the order they are looked at for
+	// eviction.
+	private static final Deque<Window> clock = new ArrayDeque<Window>();
+	private static int mapped = 0;
+
+	private final int windowSize;
+	private final ConcurrentMap<Long, Window> windows;
+
+	public MappedFileStorage(File file, long size) throws IOException {
+		this(file, 0, size);
+	}
+
+	public MappedFileStorage(File file, long offset, long size)
+		throws IOException {
+		this(file, offset, size, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFileStorage(File file, long offset, long size,
+		int windowSize) throws IOException {
+		super(file, offset, size);
+		this.windowSize = windowSize;
+		this.windows = new ConcurrentHashMap<Long, Window>();
+	}
+
+	@Override
+	public int read(ByteBuffer buffer, long offset) throws IOException {
+		int requested = buffer.remaining();
+
+		if (offset + requested > this.size()) {
+			throw new IllegalArgumentException("Invalid storage read request!");
+		}
+
+		FileHandlePool.Handle handle = this.acquire();
+		try {
+			int bytes = 0;
+			while (bytes < requested) {
+				ByteBuffer window = this.getWindow(handle, offset + bytes, false);
+				window.limit(Math.min(window.capacity(),
+					window.position() + requested - bytes));
+				bytes += window.remaining();
+				buffer.put(window);
+			}
+
+			return bytes;
+		} finally {
+			this.release(handle);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer buffer, long offset) throws IOException {
+		int requested = buffer.remaining();
+
+		if (offset + requested > this.size()) {
+			throw new IllegalArgumentException("Invalid storage write request!");
+		}
+
+		FileHandlePool.Handle handle = this.acquire();
+		try {
+			int bytes = 0;
+			while (bytes < requested) {
+				ByteBuffer window = this.getWindow(handle, offset + bytes, true);
+				ByteBuffer block = buffer.duplicate();
+				block.limit(block.position() + Math.min(window.remaining(),
+					requested - bytes));
+				bytes += block.remaining();
+				window.put(block);
+				buffer.position(block.position());
+			}
+
+			return bytes;
+		} finally {
+			this.release(handle);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.unmap();
+		super.close();
+	}
+
+	@Override
+	public synchronized void finish() throws IOException {
+		// The file may be moved and re-opened: windows of the partial file
+		// can't be used anymore.
+		this.unmap();
+		super.finish();
+	}
+
+	@Override
+	protected void closed(FileHandlePool.Handle handle) {
+		this.unmap();
+	}
+
+	// Returns a view of the window holding the given offset, positioned at
+	// that offset.
+	private ByteBuffer getWindow(FileHandlePool.Handle handle, long offset,
+		boolean write) throws IOException {
+		long index = offset / this.windowSize;
+
+		Window window = this.windows.get(index);
+		if (window == null) {
+			window = this.map(handle, index);
+		}
+
+		window.referenced = true;
+		if (write) {
+			window.dirty = true;
+		}
+
+		ByteBuffer view = window.buffer.duplicate();
+		view.position((int)(offset - index * this.windowSize));
+		return view;
+	}
+
+	// Maps the window of the given index, if it isn't mapped already, and
+	// drops windows that weren't used lately if too many are mapped.
+	private Window map(FileHandlePool.Handle handle, long index)
+		throws IOException {
+		Window window;
+		synchronized (this.windows) {
+			window = this.windows.get(index);
+			if (window != null) {
+				return window;
+			}
+
+			long start = index * this.windowSize;
+			long length = Math.min(this.windowSize, this.size() - start);
+			logger.trace("Mapping {}+{} byte(s) of storage file at {}.",
+				new Object[] { start, length, this.offset() });
+			window = new Window(this, index, handle.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, start, length));
+			this.windows.put(index, window);
+		}
+
+		List<Window> evicted = new ArrayList<Window>();
+		synchronized (clock) {
+			clock.add(window);
+			mapped++;
+
+			while (mapped > maxWindows) {
+				evicted.add(victim());
+			}
+		}
+
+		for (Window victim : evicted) {
+			victim.storage.windows.remove(victim.index, victim);
+			victim.release();
+		}
+
+		return window;
+	}
+
+	// Picks the window to drop next, among the windows that weren't used
+	// since they were last looked at, and takes it out of the mapped windows.
+	private static Window victim() {
+		while (true) {
+			Window window = clock.poll();
+			if (window.removed) {
+				continue;
+			}
+
+			if (window.referenced) {
+				window.referenced = false;
+				clock.add(window);
+				continue;
+			}
+
+			window.removed = true;
+			mapped--;
+			return window;
+		}
+	}
+
+	// Drops all the windows of this file.
+	private void unmap() {
+		List<Window> windows = new ArrayList<Window>(this.windows.values());
+		this.windows.clear();
+
+		synchronized (clock) {
+			for (Window window : windows) {
+				if (!window.removed) {
+					window.removed = true;
+					clock.remove(window);
+					mapped--;
+				}
+			}
+		}
+
+		for (Window window : windows) {
+			window.release();
+		}
+	}
+
+	// Returns the number of windows currently mapped by all the files.
+	public static int getMappedWindows() {
+		synchronized (clock) {
+			return mapped;
+		}
+	}
+
+	private static int getMaxWindows() {
+		String windows = System.getenv("TTORRENT_MMAP_WINDOWS");
+
+		if (windows != null) {
+			try {
+				int count = Integer.parseInt(windows);
+				if (count > 0) {
+					return count;
+				}
+			} catch (NumberFormatException nfe) {
+				// Pass
+			}
+		}
+
+		return DEFAULT_MAX_WINDOWS;
+	}
+
+	private static class Window {
+
+		private final MappedFileStorage storage;
+		private final long index;
+		private final MappedByteBuffer buffer;
+		private volatile boolean dirty;
+		private volatile boolean referenced;
+
+		// Guarded by the clock's lock.
+		private boolean removed;
+
+		private Window(MappedFileStorage storage, long index,
+			MappedByteBuffer buffer) {
+			this.storage = storage;
+			this.index = index;
+			this.buffer = buffer;
+			this.dirty = false;
+			this.referenced = true;
+			this.removed = false;
+		}
+
+		// Flushes the changes made through this window before it is dropped.
+		private void release() {
+			if (this.dirty) {
+				this.dirty = false;
+				this.buffer.force();
+			}
+		}
+	}
+}
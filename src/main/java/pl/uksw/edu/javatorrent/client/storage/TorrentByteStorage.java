@@ -3,12 +3,22 @@ package pl.uksw.edu.javatorrent.client.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public interface TorrentByteStorage {
 	public static final String PARTIAL_FILE_NAME_SUFFIX = ".part";
 	public long size();
 	public int read(ByteBuffer buffer, long offset) throws IOException;
 	public int write(ByteBuffer block, long offset) throws IOException;
+
+	// Transfers bytes from this storage directly to the given channel, less
+	// than requested if the channel can't accept more without blocking.
+	public long transferTo(long offset, long length, WritableByteChannel target)
+		throws IOException;
+
+	// Writes the data buffered by this storage, if any, to the underlying
+	// files, and waits for it to be written.
+	public void flush() throws IOException;
 	public void close() throws IOException;
 	public void finish() throws IOException;
 	public boolean isFinished();
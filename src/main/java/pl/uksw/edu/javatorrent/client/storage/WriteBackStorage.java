@@ -0,0 +1,465 @@
+package pl.uksw.edu.javatorrent.client.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A write-back cache in front of another storage. A dedicated thread flushes
+// the blocks in offset order, merging contiguous ones. Writes never wait:
+// callers stop producing blocks until whenDrained() signals room.
+public class WriteBackStorage implements TorrentByteStorage {
+
+	private static final Logger logger =
+		LoggerFactory.getLogger(WriteBackStorage.class);
+
+	// How long blocks are held, at most, before they are flushed.
+	private static final long FLUSH_DELAY_MILLIS = 1000;
+
+	// Maximum size of the merged writes issued to the storage.
+	private static final int MAX_FLUSH_SIZE = 4*1024*1024;
+
+	private final TorrentByteStorage storage;
+	private final long budget;
+
+	private TreeMap<Long, ByteBuffer> dirty;
+	private TreeMap<Long, ByteBuffer> flushing;
+	private long buffered;
+	private long flushes;
+	private int waiters;
+	private List<Runnable> drainListeners;
+
+	private Thread flusher;
+	private boolean closed;
+	private IOException failure;
+
+	public WriteBackStorage(TorrentByteStorage storage, long budget) {
+		this.storage = storage;
+		this.budget = budget;
+
+		this.dirty = new TreeMap<Long, ByteBuffer>();
+		this.flushing = new TreeMap<Long, ByteBuffer>();
+		this.buffered = 0;
+		this.flushes = 0;
+		this.waiters = 0;
+		this.drainListeners = new ArrayList<Runnable>();
+
+		logger.info("Initialized write-back cache of {} byte(s).", budget);
+	}
+
+	@Override
+	public long size() {
+		return this.storage.size();
+	}
+
+	@Override
+	public int read(ByteBuffer buffer, long offset) throws IOException {
+		int requested = buffer.remaining();
+		int position = buffer.position();
+
+		while (true) {
+			long flushes;
+			synchronized (this) {
+				flushes = this.overlaps(this.dirty, offset, requested) ||
+					this.overlaps(this.flushing, offset, requested)
+						? this.flushes
+						: -1;
+			}
+
+			buffer.limit(position + requested);
+			buffer.position(position);
+			int bytes = this.storage.read(buffer, offset);
+			if (flushes < 0) {
+				return bytes;
+			}
+
+			synchronized (this) {
+				// Blocks flushed while the storage was read may have been
+				// read before they got there, and aren't in memory anymore.
+				if (flushes != this.flushes) {
+					continue;
+				}
+
+				this.overlay(this.flushing, buffer, position, offset, requested);
+				this.overlay(this.dirty, buffer, position, offset, requested);
+			}
+
+			return bytes;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer buffer, long offset) throws IOException {
+		int requested = buffer.remaining();
+
+		if (offset + requested > this.size()) {
+			throw new IllegalArgumentException("Invalid storage write request!");
+		}
+
+		synchronized (this) {
+			if (this.closed) {
+				return this.storage.write(buffer, offset);
+			}
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(requested);
+		data.put(buffer);
+		data.flip();
+
+		synchronized (this) {
+			this.checkFailure();
+			this.insert(offset, data);
+
+			if (this.flusher == null) {
+				this.flusher = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						flushLoop();
+					}
+				}, "bt-write-back");
+				this.flusher.setDaemon(true);
+				this.flusher.start();
+			}
+
+			if (this.buffered >= this.budget / 2) {
+				this.notifyAll();
+			}
+		}
+
+		return requested;
+	}
+
+	@Override
+	public long transferTo(long offset, long length, WritableByteChannel target)
+		throws IOException {
+		boolean buffered;
+		synchronized (this) {
+			buffered = this.overlaps(this.dirty, offset, length) ||
+				this.overlaps(this.flushing, offset, length);
+		}
+
+		if (!buffered) {
+			return this.storage.transferTo(offset, length, target);
+		}
+
+		// TODO: remove cast to int when large ByteBuffer support is
+		// implemented in Java.
+		ByteBuffer data = ByteBuffer.allocate((int)length);
+		this.read(data, offset);
+		data.flip();
+		return target.write(data);
+	}
+
+	public synchronized boolean isFull() {
+		return this.buffered >= this.budget;
+	}
+
+	// Arranges for the given listener to be called once the buffered blocks
+	// no longer use up the memory budget. Returns false if they don't.
+	public synchronized boolean whenDrained(Runnable listener) {
+		if (this.closed || this.failure != null ||
+				this.buffered < this.budget) {
+			return false;
+		}
+
+		this.drainListeners.add(listener);
+		this.notifyAll();
+		return true;
+	}
+
+	// Writes all the buffered blocks to the underlying storage, and waits for
+	// them to be written.
+	@Override
+	public void flush() throws IOException {
+		synchronized (this) {
+			this.waiters++;
+			try {
+				while (this.failure == null &&
+						!(this.dirty.isEmpty() && this.flushing.isEmpty())) {
+					this.notifyAll();
+					this.wait();
+				}
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted while waiting " +
+					"for the write-back cache to be flushed.");
+			} finally {
+				this.waiters--;
+			}
+
+			this.checkFailure();
+		}
+
+		this.storage.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.flush();
+		} finally {
+			List<Runnable> listeners;
+			synchronized (this) {
+				this.closed = true;
+				this.notifyAll();
+				listeners = this.takeDrainListeners();
+			}
+
+			this.fireDrained(listeners);
+			this.storage.close();
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		this.flush();
+		this.storage.finish();
+	}
+
+	@Override
+	public boolean isFinished() {
+		return this.storage.isFinished();
+	}
+
+	// Takes the listeners to call now that the budget isn't used up anymore,
+	// if it isn't.
+	private List<Runnable> takeDrainListeners() {
+		if (this.drainListeners.isEmpty() ||
+				(!this.closed && this.failure == null &&
+					this.buffered >= this.budget)) {
+			return null;
+		}
+
+		List<Runnable> listeners = this.drainListeners;
+		this.drainListeners = new ArrayList<Runnable>();
+		return listeners;
+	}
+
+	private void fireDrained(List<Runnable> listeners) {
+		if (listeners == null) {
+			return;
+		}
+
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (this.failure != null) {
+			throw new IOException("Error flushing the write-back cache!",
+				this.failure);
+		}
+	}
+
+	// Buffers a block, replacing the parts of the blocks already buffered
+	// that it overlaps.
+	private void insert(long offset, ByteBuffer data) {
+		long end = offset + data.remaining();
+
+		Long first = this.dirty.floorKey(offset);
+		Map<Long, ByteBuffer> overlapping = new TreeMap<Long, ByteBuffer>(
+			this.dirty.subMap(first != null ? first : offset, end));
+
+		for (Map.Entry<Long, ByteBuffer> entry : overlapping.entrySet()) {
+			long start = entry.getKey();
+			ByteBuffer block = entry.getValue();
+			if (start + block.remaining() <= offset) {
+				continue;
+			}
+
+			this.dirty.remove(start);
+			this.buffered -= block.remaining();
+
+			// The parts left are copied, rather than sliced, so that they
+			// don't keep the whole block they came from in memory.
+			if (start < offset) {
+				ByteBuffer head = copy(block, 0, (int)(offset - start));
+				this.dirty.put(start, head);
+				this.buffered += head.remaining();
+			}
+
+			if (start + block.remaining() > end) {
+				ByteBuffer tail = copy(block, (int)(end - start),
+					block.remaining());
+				this.dirty.put(end, tail);
+				this.buffered += tail.remaining();
+			}
+		}
+
+		this.dirty.put(offset, data);
+		this.buffered += data.remaining();
+	}
+
+	// Copies the given range of a block into a new buffer of its size.
+	private static ByteBuffer copy(ByteBuffer block, int from, int to) {
+		ByteBuffer source = block.duplicate();
+		source.limit(source.position() + to);
+		source.position(source.position() + from);
+
+		ByteBuffer copy = ByteBuffer.allocate(to - from);
+		copy.put(source);
+		copy.flip();
+		return copy;
+	}
+
+	private boolean overlaps(TreeMap<Long, ByteBuffer> blocks, long offset,
+		long length) {
+		if (length <= 0) {
+			return false;
+		}
+
+		Map.Entry<Long, ByteBuffer> last = blocks.floorEntry(offset + length - 1);
+		return last != null &&
+			last.getKey() + last.getValue().remaining() > offset;
+	}
+
+	// Copies the parts of the given blocks that fall within the requested
+	// range over the data read from the storage.
+	private void overlay(TreeMap<Long, ByteBuffer> blocks, ByteBuffer buffer,
+		int position, long offset, int length) {
+		long end = offset + length;
+
+		Long first = blocks.floorKey(offset);
+		for (Map.Entry<Long, ByteBuffer> entry : blocks
+				.subMap(first != null ? first : offset, end).entrySet()) {
+			long start = entry.getKey();
+			ByteBuffer block = entry.getValue().duplicate();
+
+			long from = Math.max(start, offset);
+			long to = Math.min(start + block.remaining(), end);
+			if (from >= to) {
+				continue;
+			}
+
+			block.limit((int)(to - start));
+			block.position((int)(from - start));
+
+			ByteBuffer target = buffer.duplicate();
+			target.limit(position + length);
+			target.position(position + (int)(from - offset));
+			target.put(block);
+		}
+	}
+
+	private void flushLoop() {
+		ByteBuffer merged = ByteBuffer.allocate(MAX_FLUSH_SIZE);
+
+		while (true) {
+			TreeMap<Long, ByteBuffer> batch;
+			long bytes = 0;
+
+			synchronized (this) {
+				try {
+					while (this.dirty.isEmpty() && !this.closed) {
+						this.wait();
+					}
+
+					long deadline = System.currentTimeMillis() + FLUSH_DELAY_MILLIS;
+					long remaining;
+					while (!this.closed && this.waiters == 0 &&
+							this.buffered < this.budget / 2 &&
+							(remaining = deadline - System.currentTimeMillis()) > 0) {
+						this.wait(remaining);
+					}
+				} catch (InterruptedException ie) {
+					logger.debug("Write-back cache flusher interrupted.");
+					return;
+				}
+
+				if (this.dirty.isEmpty()) {
+					if (this.closed) {
+						return;
+					}
+
+					continue;
+				}
+
+				batch = this.dirty;
+				this.flushing = batch;
+				this.dirty = new TreeMap<Long, ByteBuffer>();
+			}
+
+			IOException error = null;
+			try {
+				bytes = this.flush(batch, merged);
+			} catch (IOException ioe) {
+				logger.error("Error flushing the write-back cache: {}",
+					ioe.getMessage());
+				error = ioe;
+			}
+
+			List<Runnable> listeners;
+			synchronized (this) {
+				for (ByteBuffer block : batch.values()) {
+					this.buffered -= block.remaining();
+				}
+
+				this.flushing = new TreeMap<Long, ByteBuffer>();
+				this.flushes++;
+				if (error != null && this.failure == null) {
+					this.failure = error;
+				}
+
+				this.notifyAll();
+				listeners = this.takeDrainListeners();
+			}
+
+			this.fireDrained(listeners);
+
+			logger.trace("Flushed {} byte(s) of {} block(s).", bytes,
+				batch.size());
+		}
+	}
+
+	// Writes a batch of blocks to the storage, in offset order, merging
+	// contiguous blocks together.
+	private long flush(TreeMap<Long, ByteBuffer> batch, ByteBuffer merged)
+		throws IOException {
+		long bytes = 0;
+		long start = -1;
+		merged.clear();
+
+		for (Map.Entry<Long, ByteBuffer> entry : batch.entrySet()) {
+			ByteBuffer block = entry.getValue().duplicate();
+
+			if (start >= 0 && (entry.getKey() != start + merged.position() ||
+					block.remaining() > merged.remaining())) {
+				bytes += this.writeMerged(merged, start);
+				start = -1;
+			}
+
+			if (block.remaining() > merged.capacity()) {
+				bytes += this.storage.write(block, entry.getKey());
+				continue;
+			}
+
+			if (start < 0) {
+				start = entry.getKey();
+			}
+
+			merged.put(block);
+		}
+
+		if (start >= 0) {
+			bytes += this.writeMerged(merged, start);
+		}
+
+		return bytes;
+	}
+
+	private int writeMerged(ByteBuffer merged, long offset) throws IOException {
+		merged.flip();
+		try {
+			return this.storage.write(merged, offset);
+		} finally {
+			merged.clear();
+		}
+	}
+}
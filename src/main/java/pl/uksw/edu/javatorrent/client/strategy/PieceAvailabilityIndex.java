@@ -0,0 +1,135 @@
+package pl.uksw.edu.javatorrent.client.strategy;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Index of a torrent's pieces by availability, the number of connected peers
+// that have them, kept in one intrusive linked list per count. Guarded by the
+// torrent's lock.
+public class PieceAvailabilityIndex {
+
+	private static final int NONE = -1;
+
+	private final int[] availability;
+	private final int[] next;
+	private final int[] prev;
+	private final boolean[] linked;
+
+	private int[] heads;
+	private int maxAvailability;
+
+	public PieceAvailabilityIndex(int pieceCount) {
+		this.availability = new int[pieceCount];
+		this.next = new int[pieceCount];
+		this.prev = new int[pieceCount];
+		this.linked = new boolean[pieceCount];
+
+		this.heads = new int[16];
+		Arrays.fill(this.heads, NONE);
+		this.maxAvailability = 0;
+
+		// Link in reverse so that each list starts with the lowest index.
+		for (int piece = pieceCount - 1; piece >= 0; piece--) {
+			this.link(piece);
+		}
+	}
+
+	public int getAvailability(int piece) {
+		return this.availability[piece];
+	}
+
+	public void increment(int piece) {
+		boolean linked = this.linked[piece];
+		if (linked) {
+			this.unlink(piece);
+		}
+
+		this.availability[piece]++;
+		this.maxAvailability = Math.max(this.maxAvailability,
+			this.availability[piece]);
+
+		if (linked) {
+			this.link(piece);
+		}
+	}
+
+	public void decrement(int piece) {
+		if (this.availability[piece] == 0) {
+			return;
+		}
+
+		boolean linked = this.linked[piece];
+		if (linked) {
+			this.unlink(piece);
+		}
+
+		this.availability[piece]--;
+
+		if (linked) {
+			this.link(piece);
+		}
+	}
+
+	// Removes the given piece from the selection, typically because it was
+	// downloaded.
+	public void remove(int piece) {
+		if (this.linked[piece]) {
+			this.unlink(piece);
+		}
+	}
+
+	// Collects the rarest of the given interesting pieces, at most
+	// into.length of them, and returns how many were collected.
+	public int rarest(BitSet interesting, int[] into) {
+		int count = 0;
+		int last = Math.min(this.maxAvailability, this.heads.length - 1);
+		for (int bucket = 1; bucket <= last && count < into.length; bucket++) {
+			for (int piece = this.heads[bucket];
+					piece != NONE && count < into.length;
+					piece = this.next[piece]) {
+				if (interesting.get(piece)) {
+					into[count++] = piece;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private void link(int piece) {
+		int bucket = this.availability[piece];
+		if (bucket >= this.heads.length) {
+			int size = this.heads.length;
+			this.heads = Arrays.copyOf(this.heads,
+				Math.max(bucket + 1, size * 2));
+			Arrays.fill(this.heads, size, this.heads.length, NONE);
+		}
+
+		int head = this.heads[bucket];
+		this.prev[piece] = NONE;
+		this.next[piece] = head;
+		if (head != NONE) {
+			this.prev[head] = piece;
+		}
+
+		this.heads[bucket] = piece;
+		this.linked[piece] = true;
+	}
+
+	private void unlink(int piece) {
+		int before = this.prev[piece];
+		int after = this.next[piece];
+
+		if (before != NONE) {
+			this.next[before] = after;
+		} else {
+			this.heads[this.availability[piece]] = after;
+		}
+
+		if (after != NONE) {
+			this.prev[after] = before;
+		}
+
+		this.linked[piece] = false;
+	}
+}
@@ -1,9 +1,9 @@
 package pl.uksw.edu.javatorrent.client.strategy;
 
 import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
 
 import java.util.BitSet;
-import java.util.SortedSet;
 
 /**
  * Interface for a piece request strategy provider.
@@ -16,8 +16,16 @@ public interface RequestStrategy {
 	/**
 	 * Choose a piece from the remaining pieces.
 	 *
+	 * <p>
+	 * The piece is usually one of the interesting pieces, but may also be a
+	 * piece already being downloaded from other peers, for the peer to help
+	 * finishing it.
+	 * </p>
+	 *
+	 * @param peer
+	 *		  The peer the piece will be downloaded from
 	 * @param rarest
-	 *		  A set sorted by how rare the piece is
+	 *		  The index of the pieces by how rare they are
 	 * @param interesting
 	 *		  A set of the index of all interesting pieces
 	 * @param pieces
@@ -25,5 +33,5 @@ public interface RequestStrategy {
 	 *
 	 * @return The chosen piece, or <code>null</code> if no piece is interesting
 	 */
-	Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces);
+	Piece choosePiece(SharingPeer peer, PieceAvailabilityIndex rarest, BitSet interesting, Piece[] pieces);
 }
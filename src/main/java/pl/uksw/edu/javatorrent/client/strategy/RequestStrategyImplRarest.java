@@ -1,11 +1,10 @@
 package pl.uksw.edu.javatorrent.client.strategy;
 
 import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
 
-import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Random;
-import java.util.SortedSet;
 
 /**
  * The default request strategy implementation- rarest first.
@@ -26,27 +25,14 @@ public class RequestStrategyImplRarest implements RequestStrategy {
 	}
 
 	@Override
-	public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
+	public Piece choosePiece(SharingPeer peer, PieceAvailabilityIndex rarest, BitSet interesting, Piece[] pieces) {
 		// Extract the RAREST_PIECE_JITTER rarest pieces from the interesting
 		// pieces of this peer.
-		ArrayList<Piece> choice = new ArrayList<Piece>(RAREST_PIECE_JITTER);
-		synchronized (rarest) {
-			for (Piece piece : rarest) {
-				if (interesting.get(piece.getIndex())) {
-					choice.add(piece);
-					if (choice.size() >= RAREST_PIECE_JITTER) {
-						break;
-					}
-				}
-			}
-		}
-
-		if (choice.size() == 0) return null;
-
-		Piece chosen = choice.get(
-			this.random.nextInt(
-				Math.min(choice.size(),
-				RAREST_PIECE_JITTER)));
-		return chosen;
+		int[] choice = new int[RAREST_PIECE_JITTER];
+		int count = rarest.rarest(interesting, choice);
+
+		if (count == 0) return null;
+
+		return pieces[choice[this.random.nextInt(count)]];
 	}
 }
@@ -1,9 +1,9 @@
 package pl.uksw.edu.javatorrent.client.strategy;
 
 import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
 
 import java.util.BitSet;
-import java.util.SortedSet;
 
 /**
  * A sequential request strategy implementation.
@@ -14,7 +14,7 @@ import java.util.SortedSet;
 public class RequestStrategyImplSequential implements RequestStrategy {
 
 	@Override
-	public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
+	public Piece choosePiece(SharingPeer peer, PieceAvailabilityIndex rarest, BitSet interesting, Piece[] pieces) {
 
 		for (Piece p : pieces) {
 			if (interesting.get(p.getIndex())) return p;
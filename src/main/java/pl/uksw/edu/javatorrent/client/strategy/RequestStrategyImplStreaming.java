@@ -0,0 +1,160 @@
+package pl.uksw.edu.javatorrent.client.strategy;
+
+import pl.uksw.edu.javatorrent.client.Piece;
+import pl.uksw.edu.javatorrent.client.peer.Rate;
+import pl.uksw.edu.javatorrent.client.peer.SharingPeer;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+// A time-critical request strategy implementation, for playing media back
+// while it is being downloaded. Pieces due within DEADLINE_WINDOW_MILLIS of
+// the read cursor are requested first, earliest deadline first; the rest is
+// downloaded rarest-first.
+public class RequestStrategyImplStreaming implements RequestStrategy {
+
+	// How far ahead of the read cursor pieces are time-critical.
+	private static final long DEADLINE_WINDOW_MILLIS = 10*1000;
+
+	// Minimum time before its deadline under which a piece is late, the
+	// actual margin being the playback time of two pieces if longer.
+	private static final long LATE_MARGIN_MILLIS = 2*1000;
+
+	private final RequestStrategy background;
+	private final Set<Piece> late;
+
+	private long cursor;
+	private long cursorTime;
+	private long bitrate;
+
+	public RequestStrategyImplStreaming() {
+		this.background = new RequestStrategyImplRarest();
+		this.late = new HashSet<Piece>();
+		this.cursor = 0;
+		this.cursorTime = System.currentTimeMillis();
+		this.bitrate = 0;
+	}
+
+	// Sets the offset, in the torrent's data, the player is now reading from.
+	public synchronized void setReadCursor(long offset) {
+		this.cursor = offset;
+		this.cursorTime = System.currentTimeMillis();
+	}
+
+	// In bytes per second; 0 or less to stop prioritizing pieces by deadline.
+	public synchronized void setBitrate(long bitrate) {
+		this.bitrate = Math.max(0, bitrate);
+	}
+
+	@Override
+	public Piece choosePiece(SharingPeer peer, PieceAvailabilityIndex rarest,
+			BitSet interesting, Piece[] pieces) {
+		long cursor, cursorTime, bitrate;
+		synchronized (this) {
+			cursor = this.cursor;
+			cursorTime = this.cursorTime;
+			bitrate = this.bitrate;
+		}
+
+		this.clearLatePieces(pieces, cursor, cursorTime, bitrate);
+
+		if (bitrate > 0 && pieces.length > 0) {
+			Piece chosen = this.chooseCriticalPiece(peer, interesting, pieces,
+				cursor, cursorTime, bitrate);
+			if (chosen != null) {
+				return chosen;
+			}
+		}
+
+		return this.background.choosePiece(peer, rarest, interesting, pieces);
+	}
+
+	// Pieces marked as late stop being so once they are valid, or the
+	// player moved away from them.
+	private void clearLatePieces(Piece[] pieces, long cursor,
+			long cursorTime, long bitrate) {
+		synchronized (this.late) {
+			if (this.late.isEmpty()) {
+				return;
+			}
+
+			long end = bitrate > 0 && pieces.length > 0
+				? this.getWindowEnd(cursor, cursorTime, bitrate)
+				: -1;
+
+			Iterator<Piece> it = this.late.iterator();
+			while (it.hasNext()) {
+				Piece piece = it.next();
+				if (piece.isValid() || piece.getOffset() > end ||
+						piece.getOffset() + piece.size() <= cursor) {
+					piece.setLate(false);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	// Look a window of playback ahead of where the player should be by now,
+	// assuming it did not get further than a window past the cursor without
+	// the cursor being updated.
+	private long getWindowEnd(long cursor, long cursorTime, long bitrate) {
+		long now = System.currentTimeMillis();
+		return cursor + bitrate * (DEADLINE_WINDOW_MILLIS +
+			Math.min(now - cursorTime, DEADLINE_WINDOW_MILLIS)) / 1000;
+	}
+
+	private Piece chooseCriticalPiece(SharingPeer peer, BitSet interesting,
+			Piece[] pieces, long cursor, long cursorTime, long bitrate) {
+		long now = System.currentTimeMillis();
+		long pieceLength = pieces[0].size();
+		long margin = Math.max(LATE_MARGIN_MILLIS,
+			2 * pieceLength * 1000 / bitrate);
+		float rate = peer.getDLRate().get(Rate.HORIZON_SHORT);
+
+		long end = this.getWindowEnd(cursor, cursorTime, bitrate);
+
+		BitSet available = peer.getAvailablePieces();
+		Set<Piece> requested = peer.getRequestedPieces();
+
+		for (int i = (int)Math.min(pieces.length, cursor / pieceLength);
+				i < pieces.length; i++) {
+			Piece piece = pieces[i];
+			if (piece.getOffset() > end) {
+				break;
+			}
+
+			long deadline = cursorTime +
+				Math.max(0, piece.getOffset() - cursor) * 1000 / bitrate;
+
+			if (piece.isValid() || !available.get(i)) {
+				continue;
+			}
+
+			// Leave the piece to faster peers if this one can not bring it
+			// in before its deadline. Peers we have no rate for yet are
+			// given the benefit of the doubt.
+			long remaining = Math.max(deadline - now, margin);
+			if (rate > 0 && piece.size() * 1000 / rate > remaining) {
+				continue;
+			}
+
+			if (interesting.get(i)) {
+				return piece;
+			}
+
+			if (deadline - now < margin && !requested.contains(piece) &&
+					piece.hasClaimableBlocks(peer,
+						SharingPeer.END_GAME_MAX_REQUESTS)) {
+				synchronized (this.late) {
+					piece.setLate(true);
+					this.late.add(piece);
+				}
+				return piece;
+			}
+		}
+
+		return null;
+	}
+}
@@ -1,6 +1,7 @@
 
 package pl.uksw.edu.javatorrent.common.protocol;
 
+import pl.uksw.edu.javatorrent.client.Piece;
 import pl.uksw.edu.javatorrent.client.SharedTorrent;
 
 import java.nio.ByteBuffer;
@@ -34,8 +35,10 @@ public abstract class PeerMessage {
 			return this.id;
 		}
 
+		private static final Type[] TYPES = Type.values();
+
 		public static Type get(byte c) {
-			for (Type t : Type.values()) {
+			for (Type t : TYPES) {
 				if (t.equals(c)) {
 					return t;
 				}
@@ -110,12 +113,136 @@ public abstract class PeerMessage {
 		}
 	}
 
+	// Decodes a message and hands its fields to the given visitor, without
+	// building a message object. The buffer's position and limit are
+	// restored afterwards.
+	public static Type visit(ByteBuffer buffer, SharedTorrent torrent,
+			PeerMessageVisitor visitor) throws ParseException {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		int length = buffer.getInt(start);
+		if (length == 0) {
+			visitor.onKeepAlive();
+			return Type.KEEP_ALIVE;
+		} else if (length != limit - start - MESSAGE_LENGTH_FIELD_SIZE) {
+			throw new ParseException("Message size did not match announced " +
+					"size!", 0);
+		}
+
+		int body = start + MESSAGE_LENGTH_FIELD_SIZE + 1;
+		Type type = Type.get(buffer.get(body - 1));
+		if (type == null) {
+			throw new ParseException("Unknown message ID!", body - 1);
+		}
+
+		switch (type) {
+			case CHOKE:
+				visitor.onChoke();
+				break;
+			case UNCHOKE:
+				visitor.onUnchoke();
+				break;
+			case INTERESTED:
+				visitor.onInterested();
+				break;
+			case NOT_INTERESTED:
+				visitor.onNotInterested();
+				break;
+			case HAVE: {
+				checkSize(type, length, HaveMessage.BASE_SIZE);
+				int piece = buffer.getInt(body);
+				if (piece < 0 || piece >= torrent.getPieceCount()) {
+					throw new MessageValidationException(type + " #" + piece);
+				}
+
+				visitor.onHave(piece);
+				break;
+			}
+			case BITFIELD: {
+				for (int i = torrent.getPieceCount(); i < (limit - body) * 8; i++) {
+					if ((buffer.get(body + i/8) & (1 << (7 - (i % 8)))) != 0) {
+						throw new MessageValidationException(type.toString());
+					}
+				}
+
+				buffer.position(body);
+				try {
+					visitor.onBitfield(buffer);
+				} finally {
+					buffer.limit(limit).position(start);
+				}
+				break;
+			}
+			case REQUEST:
+			case CANCEL: {
+				checkSize(type, length, RequestMessage.BASE_SIZE);
+				int piece = buffer.getInt(body);
+				int offset = buffer.getInt(body + 4);
+				int blockLength = buffer.getInt(body + 8);
+				checkBlock(type, torrent, piece, offset, blockLength);
+
+				if (type == Type.REQUEST) {
+					visitor.onRequest(piece, offset, blockLength);
+				} else {
+					visitor.onCancel(piece, offset, blockLength);
+				}
+				break;
+			}
+			case PIECE: {
+				if (length < PieceMessage.BASE_SIZE) {
+					checkSize(type, length, PieceMessage.BASE_SIZE);
+				}
+
+				int piece = buffer.getInt(body);
+				int offset = buffer.getInt(body + 4);
+				checkBlock(type, torrent, piece, offset,
+					length - PieceMessage.BASE_SIZE);
+
+				buffer.position(body + 8);
+				try {
+					visitor.onPiece(piece, offset, buffer);
+				} finally {
+					buffer.limit(limit).position(start);
+				}
+				break;
+			}
+			default:
+				throw new IllegalStateException("Message type should have " +
+						"been properly defined by now.");
+		}
+
+		return type;
+	}
+
+	private static void checkSize(Type type, int length, int expected)
+		throws ParseException {
+		if (length != expected) {
+			throw new ParseException("Invalid " + type + " message size " +
+				length + "!", 0);
+		}
+	}
+
+	private static void checkBlock(Type type, SharedTorrent torrent,
+			int piece, int offset, int length)
+		throws MessageValidationException {
+		if (piece < 0 || piece >= torrent.getPieceCount() ||
+				offset < 0 || length < 0 ||
+				offset + (long)length > torrent.getPiece(piece).size()) {
+			throw new MessageValidationException(type + " #" + piece +
+				" (" + length + "@" + offset + ")");
+		}
+	}
+
 	public static class MessageValidationException extends ParseException {
 
 		static final long serialVersionUID = -1;
 
 		public MessageValidationException(PeerMessage m) {
-			super("Message " + m + " is not valid!", 0);
+			this(m.toString());
+		}
+
+		public MessageValidationException(String message) {
+			super("Message " + message + " is not valid!", 0);
 		}
 
 	}
@@ -414,14 +541,28 @@ public abstract class PeerMessage {
 
 		private int piece;
 		private int offset;
+		private int length;
 		private ByteBuffer block;
+		private Piece source;
 
 		private PieceMessage(ByteBuffer buffer, int piece,
 				int offset, ByteBuffer block) {
 			super(Type.PIECE, buffer);
 			this.piece = piece;
 			this.offset = offset;
+			this.length = block.capacity();
 			this.block = block;
+			this.source = null;
+		}
+
+		private PieceMessage(ByteBuffer header, Piece source,
+				int offset, int length) {
+			super(Type.PIECE, header);
+			this.piece = source.getIndex();
+			this.offset = offset;
+			this.length = length;
+			this.block = null;
+			this.source = source;
 		}
 
 		public int getPiece() {
@@ -432,10 +573,18 @@ public abstract class PeerMessage {
 			return this.offset;
 		}
 
+		public int getLength() {
+			return this.length;
+		}
+
 		public ByteBuffer getBlock() {
 			return this.block;
 		}
 
+		public Piece getSource() {
+			return this.source;
+		}
+
 		@Override
 		public PieceMessage validate(SharedTorrent torrent)
 			throws MessageValidationException {
@@ -465,13 +614,26 @@ public abstract class PeerMessage {
 			buffer.put(PeerMessage.Type.PIECE.getTypeByte());
 			buffer.putInt(piece);
 			buffer.putInt(offset);
-			buffer.put(block);
+			buffer.put(block.duplicate());
 			return new PieceMessage(buffer, piece, offset, block);
 		}
 
+		// Crafts a piece message whose block will be transferred straight
+		// from the given piece's storage when the message is sent.
+		public static PieceMessage craft(Piece source, int offset,
+				int length) {
+			ByteBuffer header = ByteBuffer.allocate(
+				MESSAGE_LENGTH_FIELD_SIZE + PieceMessage.BASE_SIZE);
+			header.putInt(PieceMessage.BASE_SIZE + length);
+			header.put(PeerMessage.Type.PIECE.getTypeByte());
+			header.putInt(source.getIndex());
+			header.putInt(offset);
+			return new PieceMessage(header, source, offset, length);
+		}
+
 		public String toString() {
 			return super.toString() + " #" + this.getPiece() +
-				" (" + this.getBlock().capacity() + "@" + this.getOffset() + ")";
+				" (" + this.getLength() + "@" + this.getOffset() + ")";
 		}
 	}
 	public static class CancelMessage extends PeerMessage {
@@ -0,0 +1,28 @@
+package pl.uksw.edu.javatorrent.common.protocol;
+
+import java.nio.ByteBuffer;
+
+// Typed callbacks for the messages decoded by PeerMessage.visit(). Buffers
+// are views over the receive buffer, only valid for the duration of the call.
+public interface PeerMessageVisitor {
+
+	public void onKeepAlive();
+
+	public void onChoke();
+
+	public void onUnchoke();
+
+	public void onInterested();
+
+	public void onNotInterested();
+
+	public void onHave(int piece);
+
+	public void onBitfield(ByteBuffer bitfield);
+
+	public void onRequest(int piece, int offset, int length);
+
+	public void onPiece(int piece, int offset, ByteBuffer block);
+
+	public void onCancel(int piece, int offset, int length);
+}
@@ -0,0 +1,152 @@
+package pl.uksw.edu.javatorrent.client.storage;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FileCollectionStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileCollectionStorage storage;
+
+	@After
+	public void tearDown() throws IOException {
+		if (this.storage != null) {
+			this.storage.close();
+		}
+	}
+
+	private byte[] create(long... sizes) throws IOException {
+		List<FileStorage> files = new ArrayList<FileStorage>();
+		long offset = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			files.add(new FileStorage(new File(this.folder.getRoot(), "f" + i),
+				offset, sizes[i]));
+			offset += sizes[i];
+		}
+
+		this.storage = new FileCollectionStorage(files, offset);
+
+		byte[] data = new byte[(int)offset];
+		new Random(offset).nextBytes(data);
+		this.storage.write(ByteBuffer.wrap(data), 0);
+		return data;
+	}
+
+	private void assertRead(byte[] expected, int offset, int length)
+		throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		assertEquals(length, this.storage.read(buffer, offset));
+		assertArrayEquals("read " + length + "@" + offset,
+			Arrays.copyOfRange(expected, offset, offset + length),
+			buffer.array());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WritableByteChannel target = Channels.newChannel(out);
+		long transferred = 0;
+		while (transferred < length) {
+			transferred += this.storage.transferTo(offset + transferred,
+				length - transferred, target);
+		}
+
+		assertArrayEquals("transfer " + length + "@" + offset,
+			Arrays.copyOfRange(expected, offset, offset + length),
+			out.toByteArray());
+	}
+
+	@Test
+	public void testReadsAcrossFileBoundaries() throws IOException {
+		byte[] data = this.create(10, 20, 30);
+
+		assertRead(data, 0, 10);
+		assertRead(data, 9, 2);
+		assertRead(data, 10, 20);
+		assertRead(data, 29, 2);
+		assertRead(data, 5, 50);
+		assertRead(data, 0, 60);
+	}
+
+	@Test
+	public void testFirstAndLastByte() throws IOException {
+		byte[] data = this.create(7, 1, 13);
+
+		assertRead(data, 0, 1);
+		assertRead(data, 7, 1);
+		assertRead(data, 20, 1);
+		assertRead(data, 19, 2);
+	}
+
+	@Test
+	public void testEmptyFiles() throws IOException {
+		byte[] data = this.create(0, 10, 0, 0, 5, 0);
+
+		assertRead(data, 0, 10);
+		assertRead(data, 9, 2);
+		assertRead(data, 10, 5);
+		assertRead(data, 14, 1);
+		assertRead(data, 0, 15);
+	}
+
+	@Test
+	public void testWritesAcrossFileBoundaries() throws IOException {
+		byte[] data = this.create(10, 0, 20, 30);
+
+		byte[] block = new byte[25];
+		new Random(1).nextBytes(block);
+		this.storage.write(ByteBuffer.wrap(block), 8);
+		System.arraycopy(block, 0, data, 8, block.length);
+
+		assertRead(data, 0, 60);
+		assertEquals(10, new File(this.folder.getRoot(), "f0.part").length());
+		assertEquals(30, new File(this.folder.getRoot(), "f3.part").length());
+	}
+
+	@Test
+	public void testRandomAccessMatchesFlatFile() throws IOException {
+		Random random = new Random(42);
+		long[] sizes = new long[200];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(3000);
+		}
+
+		byte[] data = this.create(sizes);
+		for (int i = 0; i < 500; i++) {
+			int offset = random.nextInt(data.length);
+			int length = Math.min(random.nextInt(10000), data.length - offset);
+
+			byte[] block = new byte[length];
+			random.nextBytes(block);
+			this.storage.write(ByteBuffer.wrap(block), offset);
+			System.arraycopy(block, 0, data, offset, length);
+		}
+
+		for (int i = 0; i < 500; i++) {
+			int offset = random.nextInt(data.length);
+			int length = Math.min(random.nextInt(10000), data.length - offset);
+			assertRead(data, offset, length);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReadPastTheEnd() throws IOException {
+		this.create(10, 20);
+		this.storage.read(ByteBuffer.allocate(2), 29);
+	}
+}
@@ -0,0 +1,272 @@
+package pl.uksw.edu.javatorrent.client.storage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBackStorageTest {
+
+	private static final int SIZE = 64*1024;
+
+	private MemoryStorage backing;
+	private WriteBackStorage storage;
+
+	@After
+	public void tearDown() throws IOException {
+		if (this.storage != null) {
+			this.backing.release();
+			this.storage.close();
+		}
+	}
+
+	private void create(long budget) {
+		this.backing = new MemoryStorage(SIZE);
+		this.storage = new WriteBackStorage(this.backing, budget);
+	}
+
+	private void write(byte[] expected, int offset, int length, int seed)
+		throws IOException {
+		byte[] block = new byte[length];
+		new Random(seed).nextBytes(block);
+		assertEquals(length, this.storage.write(ByteBuffer.wrap(block), offset));
+		System.arraycopy(block, 0, expected, offset, length);
+	}
+
+	private void assertRead(byte[] expected, int offset, int length)
+		throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		assertEquals(length, this.storage.read(buffer, offset));
+		assertArrayEquals("read " + length + "@" + offset,
+			Arrays.copyOfRange(expected, offset, offset + length),
+			buffer.array());
+	}
+
+	@Test
+	public void testOverlappingWrites() throws IOException {
+		this.create(SIZE);
+		this.backing.hold();
+		byte[] expected = new byte[SIZE];
+
+		this.write(expected, 1000, 3000, 1);
+		// Within a buffered block, leaving a head and a tail.
+		this.write(expected, 1500, 100, 2);
+		// Over the end of a block and the start of the next one.
+		this.write(expected, 3900, 200, 3);
+		this.write(expected, 5000, 1000, 4);
+		// Over several blocks at once.
+		this.write(expected, 900, 5500, 5);
+		// Exactly over a buffered block.
+		this.write(expected, 900, 5500, 6);
+		// Right before and right after buffered blocks.
+		this.write(expected, 800, 100, 7);
+		this.write(expected, 6400, 100, 8);
+
+		assertRead(expected, 0, SIZE);
+		assertArrayEquals(new byte[SIZE], this.backing.data);
+
+		this.backing.release();
+		this.storage.flush();
+		assertArrayEquals(expected, this.backing.data);
+		assertRead(expected, 0, SIZE);
+	}
+
+	@Test
+	public void testRandomOverlappingWrites() throws IOException {
+		this.create(SIZE * 4);
+		this.backing.hold();
+		byte[] expected = new byte[SIZE];
+		Random random = new Random(42);
+
+		for (int i = 0; i < 200; i++) {
+			int offset = random.nextInt(SIZE);
+			int length = Math.min(random.nextInt(4096) + 1, SIZE - offset);
+			this.write(expected, offset, length, i);
+		}
+
+		for (int i = 0; i < 200; i++) {
+			int offset = random.nextInt(SIZE);
+			assertRead(expected, offset,
+				Math.min(random.nextInt(8192) + 1, SIZE - offset));
+		}
+
+		this.backing.release();
+		this.storage.flush();
+		assertArrayEquals(expected, this.backing.data);
+	}
+
+	@Test
+	public void testReadsSpanningDirtyAndCleanRanges() throws IOException {
+		this.create(SIZE);
+		byte[] expected = new byte[SIZE];
+		new Random(0).nextBytes(expected);
+		System.arraycopy(expected, 0, this.backing.data, 0, SIZE);
+		this.backing.hold();
+
+		this.write(expected, 100, 50, 1);
+		this.write(expected, 200, 50, 2);
+		this.write(expected, 250, 10, 3);
+
+		assertRead(expected, 0, 100);
+		assertRead(expected, 90, 20);
+		assertRead(expected, 140, 20);
+		assertRead(expected, 120, 100);
+		assertRead(expected, 0, 1000);
+		assertRead(expected, 255, 10);
+		assertRead(expected, 260, 10);
+	}
+
+	@Test
+	public void testFlushWaitsForBufferedBlocks() throws Exception {
+		this.create(SIZE);
+		this.backing.hold();
+		final byte[] expected = new byte[SIZE];
+		this.write(expected, 0, 4096, 1);
+
+		final CountDownLatch flushed = new CountDownLatch(1);
+		Thread flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					storage.flush();
+					flushed.countDown();
+				} catch (IOException ioe) {
+					// The latch is never counted down.
+				}
+			}
+		});
+		flusher.start();
+
+		assertTrue(this.backing.writing.await(5, TimeUnit.SECONDS));
+		assertFalse(flushed.await(200, TimeUnit.MILLISECONDS));
+
+		// Blocks being flushed are still read from memory.
+		assertRead(expected, 0, 8192);
+
+		this.backing.release();
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+		assertArrayEquals(expected, this.backing.data);
+		flusher.join();
+	}
+
+	@Test
+	public void testWritesDontWaitWhenFull() throws Exception {
+		this.create(4096);
+		this.backing.hold();
+		byte[] expected = new byte[SIZE];
+
+		final CountDownLatch drained = new CountDownLatch(1);
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				drained.countDown();
+			}
+		};
+
+		assertFalse(this.storage.whenDrained(listener));
+		for (int i = 0; i < 8; i++) {
+			this.write(expected, i * 1024, 1024, i);
+		}
+
+		assertTrue(this.storage.isFull());
+		assertTrue(this.storage.whenDrained(listener));
+		assertRead(expected, 0, 8192);
+		assertFalse(drained.await(200, TimeUnit.MILLISECONDS));
+
+		this.backing.release();
+		assertTrue(drained.await(5, TimeUnit.SECONDS));
+		this.storage.flush();
+		assertFalse(this.storage.isFull());
+		assertArrayEquals(expected, this.backing.data);
+	}
+
+	// An in-memory storage whose writes can be held back.
+	private static class MemoryStorage implements TorrentByteStorage {
+
+		private final byte[] data;
+		private final CountDownLatch writing;
+		private CountDownLatch gate;
+
+		private MemoryStorage(int size) {
+			this.data = new byte[size];
+			this.writing = new CountDownLatch(1);
+			this.gate = new CountDownLatch(0);
+		}
+
+		private synchronized void hold() {
+			this.gate = new CountDownLatch(1);
+		}
+
+		private synchronized void release() {
+			this.gate.countDown();
+		}
+
+		@Override
+		public long size() {
+			return this.data.length;
+		}
+
+		@Override
+		public synchronized int read(ByteBuffer buffer, long offset) {
+			int length = buffer.remaining();
+			buffer.put(this.data, (int)offset, length);
+			return length;
+		}
+
+		@Override
+		public int write(ByteBuffer block, long offset) throws IOException {
+			CountDownLatch gate;
+			synchronized (this) {
+				gate = this.gate;
+			}
+
+			this.writing.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				throw new IOException(ie);
+			}
+
+			synchronized (this) {
+				int length = block.remaining();
+				block.get(this.data, (int)offset, length);
+				return length;
+			}
+		}
+
+		@Override
+		public synchronized long transferTo(long offset, long length,
+			WritableByteChannel target) throws IOException {
+			return target.write(ByteBuffer.wrap(this.data, (int)offset,
+				(int)length));
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void finish() {
+		}
+
+		@Override
+		public boolean isFinished() {
+			return false;
+		}
+	}
+}